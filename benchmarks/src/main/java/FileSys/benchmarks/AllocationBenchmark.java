@@ -0,0 +1,58 @@
+package FileSys.benchmarks;
+
+import FileSys.BlockManager;
+import FileSys.Descriptor;
+import FileSys.InodeTable;
+import FileSys.VolumeConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Allocating and freeing a run of blocks, on an empty volume and on one where every other block is taken
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+    private static final int BLOCKS = 1 << 16;
+
+    @Param({"1", "16", "256"})
+    public int blocks;
+
+    @Param({"false", "true"})
+    public boolean fragmented;
+
+    private BlockManager blockManager;
+    private Descriptor file;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        VolumeConfig config = VolumeConfig.defaults().withBlockCount(BLOCKS);
+        blockManager = new BlockManager(config);
+        InodeTable inodes = new InodeTable(config.maxDescriptors());
+        Descriptor[] fillers = new Descriptor[2];
+        for (int id = 0; id < 3; id++) {
+            inodes.allocate(id, -1, InodeTable.FILE);
+        }
+        fillers[0] = new Descriptor(inodes, 0);
+        fillers[1] = new Descriptor(inodes, 1);
+        file = new Descriptor(inodes, 2);
+        if (fragmented) {
+            // Two files taking blocks in turns leave one-block gaps once the first is freed
+            for (int i = 0; i < BLOCKS / 2 - blocks; i++) {
+                blockManager.allocateBlocks(fillers[0], 1);
+                blockManager.allocateBlocks(fillers[1], 1);
+            }
+            blockManager.freeBlocks(fillers[0], fillers[0].getBlockMap().size());
+        }
+    }
+
+    @Benchmark
+    public boolean allocateAndFree() {
+        boolean allocated = blockManager.allocateBlocks(file, blocks);
+        blockManager.freeBlocks(file, file.getBlockMap().size());
+        return allocated;
+    }
+}
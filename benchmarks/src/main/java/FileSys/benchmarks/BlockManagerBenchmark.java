@@ -0,0 +1,55 @@
+package FileSys.benchmarks;
+
+import FileSys.BlockManager;
+import FileSys.Descriptor;
+import FileSys.InodeTable;
+import FileSys.VolumeConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// File data path of the block manager, without the locking and lookups of the file manager
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockManagerBenchmark {
+    @Param({"512", "4096"})
+    public int blockSize;
+
+    @Param({"64", "4096", "65536"})
+    public int payload;
+
+    private BlockManager blockManager;
+    private Descriptor file;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        VolumeConfig config = VolumeConfig.defaults().withBlockSize(blockSize).withBlockCount(4 * 65536 / blockSize + 64);
+        blockManager = new BlockManager(config);
+        InodeTable inodes = new InodeTable(config.maxDescriptors());
+        inodes.allocate(0, -1, InodeTable.FILE);
+        file = new Descriptor(inodes, 0);
+        blockManager.resize(file, payload);
+        byte[] data = new byte[payload];
+        ThreadLocalRandom.current().nextBytes(data);
+        buffer = ByteBuffer.wrap(data);
+    }
+
+    @Benchmark
+    public int write() {
+        buffer.clear();
+        return blockManager.write(file, 0, buffer);
+    }
+
+    @Benchmark
+    public int read() {
+        buffer.clear();
+        return blockManager.read(file, 0, buffer);
+    }
+}
@@ -0,0 +1,53 @@
+package FileSys.benchmarks;
+
+import FileSys.DirectoryEntry;
+import FileSys.FileManager;
+import FileSys.VolumeConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Namespace operations on an in-memory volume
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileManagerBenchmark {
+    // Number of entries already in the directory the operations work in
+    @Param({"8", "1024"})
+    public int entries;
+
+    private FileManager fileManager;
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fileManager = new FileManager(VolumeConfig.defaults().withBlockCount(1 << 16).withMaxDescriptors(1 << 14));
+        for (int i = 0; i < entries; i++) {
+            fileManager.createFile("entry" + i);
+        }
+    }
+
+    // A create on its own would fill the volume, so every created file is removed again
+    @Benchmark
+    public void createFile() {
+        String name = "new" + (counter++ & 1023);
+        fileManager.createFile(name);
+        fileManager.unlink(name);
+    }
+
+    @Benchmark
+    public void mkdir() {
+        String name = "dir" + (counter++ & 1023);
+        fileManager.mkdir(name);
+        fileManager.rmdir(name);
+    }
+
+    @Benchmark
+    public List<DirectoryEntry> ls() {
+        return fileManager.list();
+    }
+}
@@ -0,0 +1,42 @@
+package FileSys.benchmarks;
+
+import FileSys.FileManager;
+import FileSys.PathResolutionException;
+import FileSys.PathTarget;
+import FileSys.VolumeConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Resolving a relative path through a chain of nested directories
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResolvePathBenchmark {
+    // Number of directories above the file
+    @Param({"1", "4", "16", "64"})
+    public int depth;
+
+    private FileManager fileManager;
+    private String path;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fileManager = new FileManager(VolumeConfig.defaults().withBlockCount(1 << 16));
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            builder.append(i == 0 ? "" : "/").append("d").append(i);
+            fileManager.mkdir(builder.toString());
+        }
+        path = builder.append("/leaf").toString();
+        fileManager.createFile(path);
+    }
+
+    @Benchmark
+    public PathTarget resolvePath() throws PathResolutionException {
+        return fileManager.resolvePath(path);
+    }
+}
@@ -0,0 +1,216 @@
+package FileSys;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+// Asynchronous facade over a FileManager for services with many concurrent clients. Every request runs on
+// a virtual thread, at most maxInFlight requests are queued or running and submitting more waits for one
+// of them to finish. Reads of a file that arrive while an adjacent read of the same file is still waiting
+// to run are merged into it, the file manager is then called once for all of them.
+// Requests are not ordered against each other, a caller that needs a write before a read waits for it
+public class AsyncFileManager implements AutoCloseable {
+    private final FileManager fileManager;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore inFlight;
+    // Batch of every file that still accepts reads
+    private final Map<Integer, ReadBatch> pendingReads = new ConcurrentHashMap<>();
+    private final LongAdder coalescedReads;
+
+    private interface Operation<T> {
+        T run() throws OperationFailedException;
+    }
+
+    private record ReadRequest(long position, int length, CompletableFuture<ByteBuffer> result) {
+    }
+
+    // Reads of one file to be done as a single read of [start, end)
+    private static class ReadBatch {
+        private final List<ReadRequest> requests = new ArrayList<>();
+        private long start;
+        private long end;
+        private boolean started;
+
+        private ReadBatch(ReadRequest request) {
+            requests.add(request);
+            start = request.position();
+            end = request.position() + request.length();
+        }
+
+        // Overlapping and touching ranges are merged, nothing is added once the read has started
+        private synchronized boolean tryAdd(ReadRequest request) {
+            long requestEnd = request.position() + request.length();
+            if (started || request.position() > end || requestEnd < start
+                    || Math.max(end, requestEnd) - Math.min(start, request.position()) > Settings.ASYNC_MAX_COALESCED_READ) {
+                return false;
+            }
+            requests.add(request);
+            start = Math.min(start, request.position());
+            end = Math.max(end, requestEnd);
+            return true;
+        }
+
+        private synchronized void start() {
+            started = true;
+        }
+    }
+
+    public AsyncFileManager(FileManager fileManager) {
+        this(fileManager, Settings.ASYNC_MAX_IN_FLIGHT);
+    }
+
+    public AsyncFileManager(FileManager fileManager, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one request has to be allowed in flight");
+        }
+        this.fileManager = fileManager;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.coalescedReads = fileManager.getMetrics().counter("async.reads.coalesced");
+    }
+
+    public FileManager getFileManager() {
+        return fileManager;
+    }
+
+    // Number of requests that can still be submitted without waiting
+    public int availableSlots() {
+        return inFlight.availablePermits();
+    }
+
+    // Waits for a free slot, the slot is given back once the result is complete
+    private boolean acquire(CompletableFuture<?> result) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return false;
+        }
+        result.whenComplete((value, error) -> inFlight.release());
+        return true;
+    }
+
+    private boolean execute(Runnable task, CompletableFuture<?> result) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            return false;
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Operation<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (acquire(result)) {
+            execute(() -> {
+                try {
+                    result.complete(operation.run());
+                } catch (OperationFailedException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }, result);
+        }
+        return result;
+    }
+
+    public CompletableFuture<Integer> openAsync(String path, int flags) {
+        return submit(() -> {
+            int fd = fileManager.open(path, flags);
+            if (fd == -1) {
+                throw new OperationFailedException("Could not open '" + path + "'");
+            }
+            return fd;
+        });
+    }
+
+    public CompletableFuture<Void> closeAsync(int fd) {
+        return submit(() -> {
+            if (!fileManager.close(fd)) {
+                throw new OperationFailedException("Could not find file with fd = " + fd);
+            }
+            return null;
+        });
+    }
+
+    public CompletableFuture<FileStat> statAsync(String path) {
+        return submit(() -> {
+            FileStat stat = fileManager.getStat(path);
+            if (stat == null) {
+                throw new OperationFailedException("Could not find '" + path + "'");
+            }
+            return stat;
+        });
+    }
+
+    // Writes the remaining bytes of data at the position, completes with the number of bytes written
+    public CompletableFuture<Integer> writeAsync(int fd, long position, ByteBuffer data) {
+        return submit(() -> {
+            int length = fileManager.pwrite(fd, position, data);
+            if (length == -1) {
+                throw new OperationFailedException("Could not write to file with fd = " + fd);
+            }
+            return length;
+        });
+    }
+
+    // Completes with the bytes of [position, position + length), fewer at the end of the file. The buffer is
+    // read-only, reads merged into one call share the memory behind it
+    public CompletableFuture<ByteBuffer> readAsync(int fd, long position, int length) {
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        if (position < 0 || length < 0) {
+            result.completeExceptionally(new IllegalArgumentException("Position and length must not be negative"));
+            return result;
+        }
+        if (!acquire(result)) {
+            return result;
+        }
+        ReadRequest request = new ReadRequest(position, length, result);
+        ReadBatch batch = pendingReads.get(fd);
+        if (batch != null && batch.tryAdd(request)) {
+            coalescedReads.increment();
+            return result;
+        }
+        // A batch that isn't adjacent is replaced, it stays scheduled and runs on its own
+        ReadBatch created = new ReadBatch(request);
+        pendingReads.put(fd, created);
+        if (!execute(() -> runReads(fd, created), result)) {
+            pendingReads.remove(fd, created);
+        }
+        return result;
+    }
+
+    private void runReads(int fd, ReadBatch batch) {
+        batch.start();
+        pendingReads.remove(fd, batch);
+        try {
+            ByteBuffer data = ByteBuffer.allocate((int) (batch.end - batch.start));
+            int length = fileManager.pread(fd, batch.start, data);
+            for (ReadRequest request : batch.requests) {
+                if (length == -1) {
+                    request.result().completeExceptionally(new OperationFailedException("Could not read file with fd = " + fd));
+                    continue;
+                }
+                int from = (int) Math.min(request.position() - batch.start, length);
+                int to = (int) Math.min(request.position() - batch.start + request.length(), length);
+                request.result().complete(data.slice(from, to - from).asReadOnlyBuffer());
+            }
+        } catch (RuntimeException e) {
+            batch.requests.forEach(request -> request.result().completeExceptionally(e));
+        }
+    }
+
+    // Waits for the submitted requests, the file manager itself stays open
+    @Override
+    public void close() {
+        executor.close();
+    }
+}
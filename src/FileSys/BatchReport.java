@@ -0,0 +1,22 @@
+package FileSys;
+
+// Outcome of a batch run, the snapshot holds one timer per command type
+public record BatchReport(long lines, long elapsedNanos, MetricsSnapshot commands) {
+    public long operations() {
+        return commands.timers().values().stream().mapToLong(HistogramSnapshot::count).sum();
+    }
+
+    public long errors() {
+        return commands.timers().values().stream().mapToLong(HistogramSnapshot::errors).sum();
+    }
+
+    public double operationsPerSecond() {
+        return elapsedNanos == 0 ? 0 : operations() * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d operations (%d lines) in %.3f s | %.0f ops/s | %d errors%n", operations(), lines,
+                elapsedNanos / 1e9, operationsPerSecond(), errors()) + commands;
+    }
+}
@@ -0,0 +1,42 @@
+package FileSys;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+
+// Replays a script of shell commands without printing anything per command. Every command type gets
+// its own latency histogram, lines starting with # are comments
+public class BatchRunner {
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private final Shell shell;
+    private final Metrics commands = new Metrics();
+
+    public BatchRunner(FileManager fileManager) {
+        this.shell = new Shell(fileManager, true);
+    }
+
+    public BatchReport run(Reader script) throws IOException {
+        String[] tokens = new String[Shell.MAX_TOKENS];
+        long lines = 0;
+        long started = System.nanoTime();
+        BufferedReader reader = new BufferedReader(script, READ_BUFFER_SIZE);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines++;
+            int count = Shell.tokenize(line, tokens);
+            if (count == 0 || tokens[0].startsWith("#")) {
+                continue;
+            }
+            LatencyHistogram timer = commands.timer(tokens[0].toLowerCase(Locale.ROOT));
+            long start = timer.start();
+            boolean succeeded = shell.execute(tokens, count);
+            timer.record(start);
+            if (!succeeded) {
+                timer.recordError();
+            }
+        }
+        return new BatchReport(lines, System.nanoTime() - started, commands.snapshot());
+    }
+}
@@ -1,7 +1,14 @@
 package FileSys;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 public class Block {
-    private final byte[] data = new byte[Settings.BLOCK_SIZE];
+    private final byte[] data;
+
+    public Block(int size) {
+        this.data = new byte[size];
+    }
 
     public void write(int offset, byte value) {
         if (offset >= 0 && offset < data.length) {
@@ -15,4 +22,24 @@ public class Block {
         }
         return '\0';
     }
+
+    public void read(int offset, byte[] dst, int dstOffset, int length) {
+        System.arraycopy(data, offset, dst, dstOffset, length);
+    }
+
+    public void write(int offset, byte[] src, int srcOffset, int length) {
+        System.arraycopy(src, srcOffset, data, offset, length);
+    }
+
+    public void read(int offset, ByteBuffer dst, int length) {
+        dst.put(data, offset, length);
+    }
+
+    public void write(int offset, ByteBuffer src, int length) {
+        src.get(data, offset, length);
+    }
+
+    public void fill(int offset, int length, byte value) {
+        Arrays.fill(data, offset, offset + length, value);
+    }
 }
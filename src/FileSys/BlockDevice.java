@@ -0,0 +1,23 @@
+package FileSys;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface BlockDevice {
+    int getBlockSize();
+
+    int getBlockCount();
+
+    void read(int blockId, int offset, ByteBuffer dst, int length);
+
+    void write(int blockId, int offset, ByteBuffer src, int length);
+
+    void fill(int blockId, int offset, int length, byte value);
+
+    // Called when blocks go back to the free map, so the device may drop their contents
+    void release(int blockId, int count);
+
+    void flush() throws IOException;
+
+    void close() throws IOException;
+}
@@ -1,175 +1,957 @@
 package FileSys;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class BlockManager {
-    private final Block[] blocks = new Block[Settings.MAX_BLOCKS];
+    private static final int CHUNK_BLOCKS = Settings.COMPRESSION_CHUNK_BLOCKS;
 
-    public int calculateBlockNeeded(int size){
-        return (size + Settings.BLOCK_SIZE - 1) / Settings.BLOCK_SIZE;
+    private final BlockDevice device;
+    private final int blockSize;
+    private final int chunkSize;
+    private final FreeSpaceMap freeSpaceMap;
+    private final DirectoryIndex directoryIndex = new DirectoryIndex(this);
+    private final Metrics metrics = new Metrics();
+    private final LatencyHistogram allocateTimer = metrics.timer("allocate");
+    private final LongAdder blocksAllocated = metrics.counter("blocks.allocated");
+    private final LongAdder blocksFreed = metrics.counter("blocks.freed");
+    private final LongAdder blocksCopied = metrics.counter("blocks.copied");
+    // Bytes given to the compressor and what was stored for them, compressed or not, and bytes decompressed
+    private final LatencyHistogram compressTimer = metrics.timer("compress");
+    private final LatencyHistogram decompressTimer = metrics.timer("decompress");
+    private final LongAdder compressedIn = metrics.counter("compression.bytes.in");
+    private final LongAdder compressedOut = metrics.counter("compression.bytes.out");
+    private final LongAdder decompressedBytes = metrics.counter("decompression.bytes");
+    // Blocks that snapshots still reference, they are copied before a file changes them
+    private final BlockRefCounts refs;
+    // Every transaction holds it shared, a snapshot holds it exclusively while it copies the metadata
+    private final ReentrantReadWriteLock snapshotGate = new ReentrantReadWriteLock();
+    // Present only for image-backed volumes
+    private Journal journal;
+
+    public BlockManager(VolumeConfig config) {
+        this(new HeapBlockDevice(config.blockSize(), (int) config.blockCount()), new FreeSpaceMap((int) config.blockCount()));
+    }
+
+    public BlockManager(VolumeImage image) {
+        this(new BufferCache(image, Settings.BUFFER_CACHE_SIZE, Settings.BUFFER_CACHE_POLICY), image.getFreeSpaceMap());
+        this.journal = image.getJournal();
+        journal.attach(device, image.getDescriptorTable());
+    }
+
+    public BlockManager(BlockDevice device, FreeSpaceMap freeSpaceMap) {
+        this.device = device;
+        this.blockSize = device.getBlockSize();
+        this.chunkSize = blockSize * CHUNK_BLOCKS;
+        this.freeSpaceMap = freeSpaceMap;
+        this.refs = new BlockRefCounts(freeSpaceMap.size());
+    }
+
+    public BlockDevice getDevice() {
+        return device;
+    }
+
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpaceMap;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    // Counters and latencies of the volume, the file manager adds its operations to the same registry
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    // Everything changed until the matching commit is journaled as one atomic operation
+    public void beginTransaction() {
+        snapshotGate.readLock().lock();
+        if (journal != null) {
+            journal.begin();
+        }
+    }
+
+    public void commitTransaction() {
+        try {
+            if (journal != null) {
+                journal.commit();
+            }
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+    }
+
+    // Runs the action once every transaction in progress has committed, none starts until it returns. The caller
+    // must not be inside a transaction
+    public void freeze(Runnable action) {
+        snapshotGate.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            snapshotGate.writeLock().unlock();
+        }
+    }
+
+    public BlockRefCounts getRefCounts() {
+        return refs;
+    }
+
+    // Adds a reference to every block of the map, the blocks then outlive the file that owns them
+    public void share(ExtentMap blockMap) {
+        for (int extent = 0; extent < blockMap.extentCount(); extent++) {
+            if (!blockMap.isHole(extent)) {
+                refs.share(blockMap.extentStart(extent), blockMap.extentLength(extent));
+            }
+        }
+    }
+
+    // Drops one reference from every block of the map, blocks nobody else references are freed
+    public void dropReferences(ExtentMap blockMap) {
+        beginTransaction();
+        try {
+            releaseRange(blockMap, 0, blockMap.size());
+        } finally {
+            commitTransaction();
+        }
+    }
+
+    // Frees every allocated block that isn't marked reachable, used to reclaim blocks held by snapshots that
+    // were lost with a crash. Returns the number of blocks freed
+    public int reclaim(BitSet reachable) {
+        int reclaimed = 0;
+        int runStart = -1;
+        int runs = 0;
+        beginTransaction();
+        try {
+            for (int blockId = 0; blockId <= freeSpaceMap.size(); blockId++) {
+                boolean leaked = blockId < freeSpaceMap.size() && !reachable.get(blockId) && !freeSpaceMap.isFree(blockId);
+                if (leaked) {
+                    if (runStart == -1) {
+                        runStart = blockId;
+                    }
+                    continue;
+                }
+                if (runStart != -1) {
+                    release(runStart, blockId - runStart);
+                    reclaimed += blockId - runStart;
+                    runStart = -1;
+                    // Keeps every transaction well below the size of the journal
+                    if (++runs % Settings.RECLAIM_RUNS_PER_TRANSACTION == 0) {
+                        commitTransaction();
+                        beginTransaction();
+                    }
+                }
+            }
+        } finally {
+            commitTransaction();
+        }
+        blocksFreed.add(reclaimed);
+        return reclaimed;
+    }
+
+    // Directory and symlink contents are metadata, regular file data is not journaled
+    private boolean isJournaled(Descriptor descriptor) {
+        return journal != null && !descriptor.isFile();
+    }
+
+    private void logAllocation(int start, int length) {
+        if (journal != null) {
+            journal.logAllocation(start, length);
+        }
+    }
+
+    // Blocks a snapshot still references only lose a reference, the rest are freed in runs
+    private void release(int start, int length) {
+        if (!refs.hasShared()) {
+            releaseRun(start, length);
+            return;
+        }
+        int runStart = -1;
+        for (int blockId = start; blockId < start + length; blockId++) {
+            if (refs.drop(blockId)) {
+                if (runStart == -1) {
+                    runStart = blockId;
+                }
+            } else if (runStart != -1) {
+                releaseRun(runStart, blockId - runStart);
+                runStart = -1;
+            }
+        }
+        if (runStart != -1) {
+            releaseRun(runStart, start + length - runStart);
+        }
+    }
+
+    // With a journal the blocks stay allocated until the free is committed
+    private void releaseRun(int start, int length) {
+        if (journal == null) {
+            freeSpaceMap.free(start, length);
+            device.release(start, length);
+            return;
+        }
+        journal.free(start, length, () -> {
+            freeSpaceMap.free(start, length);
+            device.release(start, length);
+        });
+    }
+
+    // Callers keep size within getMaxFileSize, block counts are ints
+    public int calculateBlockNeeded(long size){
+        return (int) ((size + blockSize - 1) / blockSize);
+    }
+
+    // Largest size a file can have, the block map of a file counts its blocks with ints
+    public long getMaxFileSize() {
+        return (long) Integer.MAX_VALUE * blockSize;
+    }
+
+    public int getFreeBlocksAmount() {
+        return freeSpaceMap.freeCount();
     }
 
     public void freeBlocks(Descriptor descriptor, int difference){
-        int c = 0;
-        List<Integer> blockMap = descriptor.getBlockMap();
-        System.out.println("difference: " + difference);
-        System.out.println("blockMap: " + blockMap);
-        for (int i = 0; i < difference; i++){
-            int deletedElement = blockMap.removeLast();
-            System.out.println("Freed block " + deletedElement);
-            blocks[deletedElement] = null;
-            c++;
-        }
-        System.out.println("Freed " + c + " blocks");
-        System.out.println("blockMap: " + blockMap);
-    }
-
-    public void allocateBlocks(Descriptor descriptor, int difference){
-        System.out.println("Allocating " + difference + " blocks");
-        List<Integer> blockMap = descriptor.getBlockMap();
-        int c = 0;
-        for (int i = 0; i < Settings.MAX_BLOCKS && c < difference; i++) {
-            if (blocks[i] == null) {
-                blocks[i] = new Block();
-                blockMap.add(i);
-                System.out.println("Block " + i + " allocated");
-                c++;
-            }
-        }
-        if (c == 0){
-            System.out.println("Failed to allocate blocks");
+        ExtentMap blockMap = descriptor.getBlockMap();
+        int from = blockMap.size() - difference;
+        releaseRange(blockMap, from, blockMap.size());
+        blockMap.truncate(from);
+        if (descriptor.getChunkMap() != null) {
+            descriptor.getChunkMap().truncate(chunkCount(blockMap));
+        }
+        storeBlockMap(descriptor);
+        Log.debug(() -> "Freed " + difference + " blocks, block map: " + blockMap);
+    }
+
+    // Every extent in the logical range [from, to) goes back to the free map as one run, holes are skipped
+    private void releaseRange(ExtentMap blockMap, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        for (int extent = blockMap.findExtent(from); extent < blockMap.extentCount() && blockMap.extentOffset(extent) < to; extent++) {
+            if (blockMap.isHole(extent)) {
+                continue;
+            }
+            int skip = Math.max(from - blockMap.extentOffset(extent), 0);
+            int end = Math.min(blockMap.extentOffset(extent) + blockMap.extentLength(extent), to);
+            release(blockMap.extentStart(extent) + skip, end - blockMap.extentOffset(extent) - skip);
+            blocksFreed.add(end - blockMap.extentOffset(extent) - skip);
+        }
+    }
+
+    // Grows the file to size without allocating anything, the new blocks are holes until they are written
+    public boolean extendSparse(Descriptor descriptor, long size) {
+        if (size > getMaxFileSize()) {
+            Log.warn("File size " + size + " exceeds the limit of " + getMaxFileSize());
+            return false;
+        }
+        long currentSize = descriptor.getFileSize();
+        int newBlocks = calculateBlockNeeded(size) - descriptor.getBlockMap().size();
+        beginTransaction();
+        try {
+            if (newBlocks > 0) {
+                descriptor.getBlockMap().append(ExtentMap.HOLE, newBlocks);
+                if (!storeBlockMap(descriptor)) {
+                    descriptor.getBlockMap().truncate(descriptor.getBlockMap().size() - newBlocks);
+                    return false;
+                }
+            }
+            descriptor.setFileSize(size);
+            // Only the rest of the old last block may still hold bytes from before a shrink. Chunks are stored
+            // without them, past their length a chunk reads as zeroes
+            if (!descriptor.isCompressed()) {
+                fillWithZeroes(descriptor, currentSize, Math.min(size, (long) calculateBlockNeeded(currentSize) * blockSize));
+            }
+        } finally {
+            commitTransaction();
+        }
+        return true;
+    }
+
+    // Frees the whole blocks inside [offset, offset + length) and zeroes the partial blocks at both ends
+    public int punchHole(Descriptor descriptor, long offset, long length) {
+        long to = Math.min(offset + length, descriptor.getFileSize());
+        if (offset < 0 || offset >= to) {
+            return 0;
+        }
+        ExtentMap blockMap = descriptor.getBlockMap();
+        int firstBlock = calculateBlockNeeded(offset);
+        int endBlock = to == descriptor.getFileSize() ? blockMap.size() : (int) (to / blockSize);
+        int before = blockMap.allocatedCount();
+        beginTransaction();
+        try {
+            if (descriptor.isCompressed()) {
+                punchChunks(descriptor, offset, to);
+                return before - blockMap.allocatedCount();
+            }
+            if (firstBlock >= endBlock) {
+                fillWithZeroes(descriptor, offset, to);
+                return 0;
+            }
+            fillWithZeroes(descriptor, offset, (long) firstBlock * blockSize);
+            fillWithZeroes(descriptor, (long) endBlock * blockSize, to);
+            releaseRange(blockMap, firstBlock, endBlock);
+            blockMap.replace(firstBlock, endBlock - firstBlock, ExtentMap.HOLE);
+            storeBlockMap(descriptor);
+        } finally {
+            commitTransaction();
+        }
+        return before - blockMap.allocatedCount();
+    }
+
+    // Backs every hole under the bytes [position, to) with blocks before they are written. Whatever part of
+    // the new blocks the write doesn't cover is zeroed, freed blocks may still hold old data
+    private boolean allocateHoles(Descriptor descriptor, long position, long to) {
+        boolean allocated = backHoles(descriptor, position, to);
+        return storeBlockMap(descriptor) && allocated;
+    }
+
+    // Same as allocateHoles without storing the block map
+    private boolean backHoles(Descriptor descriptor, long position, long to) {
+        ExtentMap blockMap = descriptor.getBlockMap();
+        int index = (int) (position / blockSize);
+        int endBlock = calculateBlockNeeded(to);
+        while (index < endBlock) {
+            int extent = blockMap.findExtent(index);
+            int extentEnd = Math.min(blockMap.extentOffset(extent) + blockMap.extentLength(extent), endBlock);
+            if (!blockMap.isHole(extent)) {
+                index = extentEnd;
+                continue;
+            }
+            int count = extentEnd - index;
+            int hint = index > 0 ? blockMap.get(index - 1) : ExtentMap.HOLE;
+            int start = freeSpaceMap.allocateContiguous(count, hint == ExtentMap.HOLE ? -1 : hint + 1);
+            if (start == -1) {
+                // No run is long enough, the hole is filled one block at a time
+                start = freeSpaceMap.allocate();
+                if (start == -1) {
+                    Log.warn("Failed to allocate blocks");
+                    return false;
+                }
+                count = 1;
+            }
+            logAllocation(start, count);
+            blockMap.replace(index, count, start);
+            blocksAllocated.add(count);
+            long runStart = (long) index * blockSize;
+            long runEnd = (long) (index + count) * blockSize;
+            if (position > runStart) {
+                device.fill(start, 0, (int) (position - runStart), (byte) 0);
+            }
+            if (to < runEnd) {
+                int offset = (int) (to - (long) (index + count - 1) * blockSize);
+                device.fill(start + count - 1, offset, blockSize - offset, (byte) 0);
+            }
+            index += count;
+        }
+        return true;
+    }
+
+    // Gives the file its own copy of every block under the bytes [from, to) that a snapshot still references.
+    // Blocks the range covers completely aren't copied, the caller overwrites all of them
+    private boolean unshare(Descriptor descriptor, long from, long to) {
+        ExtentMap blockMap = descriptor.getBlockMap();
+        boolean journaled = isJournaled(descriptor);
+        boolean changed = false;
+        ByteBuffer copy = null;
+        int endBlock = calculateBlockNeeded(to);
+        for (int index = (int) (from / blockSize); index < endBlock; index++) {
+            int blockId = blockMap.get(index);
+            if (blockId == ExtentMap.HOLE || !refs.isShared(blockId)) {
+                continue;
+            }
+            int hint = index > 0 ? blockMap.get(index - 1) : ExtentMap.HOLE;
+            int fresh = freeSpaceMap.allocateContiguous(1, hint == ExtentMap.HOLE ? -1 : hint + 1);
+            if (fresh == -1) {
+                fresh = freeSpaceMap.allocate();
+            }
+            if (fresh == -1) {
+                if (changed) {
+                    storeBlockMap(descriptor);
+                }
+                Log.warn("Failed to allocate blocks");
+                return false;
+            }
+            logAllocation(fresh, 1);
+            if (journaled) {
+                journal.logBlock(fresh);
+            }
+            if ((long) index * blockSize < from || (long) (index + 1) * blockSize > to) {
+                if (copy == null) {
+                    copy = ByteBuffer.allocate(blockSize);
+                }
+                copy.clear();
+                device.read(blockId, 0, copy, blockSize);
+                copy.flip();
+                device.write(fresh, 0, copy, blockSize);
+                blocksCopied.increment();
+            }
+            blockMap.replace(index, 1, fresh);
+            release(blockId, 1);
+            blocksAllocated.increment();
+            changed = true;
+        }
+        return !changed || storeBlockMap(descriptor);
+    }
+
+    public boolean allocateBlocks(Descriptor descriptor, int difference){
+        long started = allocateTimer.start();
+        try {
+            return allocateRun(descriptor, difference);
+        } finally {
+            allocateTimer.record(started);
+        }
+    }
+
+    private boolean allocateRun(Descriptor descriptor, int difference) {
+        ExtentMap blockMap = descriptor.getBlockMap();
+        // Assumes the new blocks form one extent, checked again below once the real count is known
+        int chainBlocks = 0;
+        if (descriptor.getTable() != null) {
+            chainBlocks = Math.max(calculateChainNeeded(blockMap.extentCount() + 1) - descriptor.getMapChain().size(), 0);
+        }
+        if (difference + chainBlocks > freeSpaceMap.freeCount()) {
+            Log.warn("Failed to allocate blocks");
+            return false;
+        }
+        // Prefer one run right after the last block of the file, then any run, then single blocks
+        int from = blockMap.getLast() == ExtentMap.HOLE ? -1 : blockMap.getLast() + 1;
+        int start = freeSpaceMap.allocateContiguous(difference, from);
+        if (start != -1) {
+            logAllocation(start, difference);
+            blockMap.append(start, difference);
         } else {
-            System.out.println("Allocated " + c + " blocks");
-            System.out.println(blockMap);
+            for (int c = 0; c < difference; c++) {
+                int blockId = freeSpaceMap.allocate();
+                // Other threads may take the remaining blocks after the free count check
+                if (blockId == -1) {
+                    freeBlocks(descriptor, c);
+                    Log.warn("Failed to allocate blocks");
+                    return false;
+                }
+                logAllocation(blockId, 1);
+                blockMap.append(blockId, 1);
+            }
+        }
+        if (descriptor.getTable() != null
+                && calculateChainNeeded(blockMap.extentCount()) - descriptor.getMapChain().size() > freeSpaceMap.freeCount()) {
+            freeBlocks(descriptor, difference);
+            Log.warn("Failed to allocate blocks");
+            return false;
+        }
+        storeBlockMap(descriptor);
+        blocksAllocated.add(difference);
+        Log.debug(() -> "Allocated " + difference + " blocks, block map: " + blockMap);
+        return true;
+    }
+
+    private int extentsPerChainBlock() {
+        return (blockSize / Integer.BYTES - 1) / 2;
+    }
+
+    private int calculateChainNeeded(int extents) {
+        return (extents + extentsPerChainBlock() - 1) / extentsPerChainBlock();
+    }
+
+    private int chunksPerChainBlock() {
+        return blockSize / Integer.BYTES - 1;
+    }
+
+    private int chunkCount(ExtentMap blockMap) {
+        return (int) (((long) blockMap.size() + CHUNK_BLOCKS - 1) / CHUNK_BLOCKS);
+    }
+
+    // Persists the block map of an image-backed descriptor as a chain of blocks: [next block id][start, length...]
+    // Holes are stored as runs starting at -1, compressed files add blocks of [next block id][chunk length...].
+    // Returns false if the chain can't grow
+    public boolean storeBlockMap(Descriptor descriptor) {
+        DescriptorTable table = descriptor.getTable();
+        if (table == null || descriptor.isRemoved()) {
+            return true;
         }
+        ExtentMap blockMap = descriptor.getBlockMap();
+        ExtentMap chain = descriptor.getMapChain();
+        ChunkMap chunkMap = descriptor.getChunkMap();
+        int extentBlocks = calculateChainNeeded(blockMap.extentCount());
+        int chunks = chunkMap == null ? 0 : chunkCount(blockMap);
+        int needed = extentBlocks + (chunks + chunksPerChainBlock() - 1) / chunksPerChainBlock();
+        beginTransaction();
+        try {
+            while (chain.size() > needed) {
+                release(chain.getLast(), 1);
+                chain.truncate(chain.size() - 1);
+            }
+            while (chain.size() < needed) {
+                int blockId = freeSpaceMap.allocate();
+                if (blockId == -1) {
+                    Log.warn("Failed to store block map");
+                    return false;
+                }
+                logAllocation(blockId, 1);
+                chain.append(blockId, 1);
+            }
+
+            int perBlock = extentsPerChainBlock();
+            int chunksPerBlock = chunksPerChainBlock();
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+            for (int c = 0; c < needed; c++) {
+                buffer.clear();
+                buffer.putInt(c + 1 < needed ? chain.get(c + 1) : -1);
+                for (int i = c * perBlock; c < extentBlocks && i < Math.min((c + 1) * perBlock, blockMap.extentCount()); i++) {
+                    buffer.putInt(blockMap.extentStart(i)).putInt(blockMap.extentLength(i));
+                }
+                // Chunk lengths of a compressed file follow the extents in blocks of their own
+                int firstChunk = (c - extentBlocks) * chunksPerBlock;
+                for (int i = firstChunk; c >= extentBlocks && i < Math.min(firstChunk + chunksPerBlock, chunks); i++) {
+                    buffer.putInt(chunkMap.get(i));
+                }
+                buffer.rewind();
+                if (journal != null) {
+                    journal.logBlock(chain.get(c));
+                }
+                device.write(chain.get(c), 0, buffer, blockSize);
+            }
+            table.storeBlockMap(descriptor.getId(), needed == 0 ? -1 : chain.get(0), blockMap.extentCount());
+        } finally {
+            commitTransaction();
+        }
+        return true;
     }
 
-    public void fillWithZeroes(Descriptor descriptor) {
-        int from = descriptor.getOffset();
-        int to = descriptor.getFileSize();
+    // mapLength is the number of extents
+    public void loadBlockMap(Descriptor descriptor, int mapHead, int mapLength) {
+        if (mapHead == -1) {
+            return;
+        }
+        ExtentMap blockMap = descriptor.getBlockMap();
+        ExtentMap chain = descriptor.getMapChain();
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        int blockId = mapHead;
+        while (blockId != -1 && blockMap.extentCount() < mapLength) {
+            chain.append(blockId, 1);
+            buffer.clear();
+            device.read(blockId, 0, buffer, blockSize);
+            buffer.flip();
+            int next = buffer.getInt();
+            for (int i = 0; i < extentsPerChainBlock() && blockMap.extentCount() < mapLength; i++) {
+                blockMap.append(buffer.getInt(), buffer.getInt());
+            }
+            blockId = next;
+        }
+        ChunkMap chunkMap = descriptor.getChunkMap();
+        int chunks = chunkMap == null ? 0 : chunkCount(blockMap);
+        int chunk = 0;
+        while (blockId != -1 && chunk < chunks) {
+            chain.append(blockId, 1);
+            buffer.clear();
+            device.read(blockId, 0, buffer, blockSize);
+            buffer.flip();
+            int next = buffer.getInt();
+            for (int i = 0; i < chunksPerChainBlock() && chunk < chunks; i++) {
+                chunkMap.set(chunk++, buffer.getInt());
+            }
+            blockId = next;
+        }
+    }
+
+    private interface SpanAction {
+        void apply(int blockId, int offsetInBlock, int length);
+    }
+
+    // Splits the byte range [from, to) of a file into per-block spans, the extent is only searched for once
+    private void forEachSpan(Descriptor descriptor, long from, long to, SpanAction action) {
+        ExtentMap blockMap = descriptor.getBlockMap();
+        int index = (int) (from / blockSize);
+        int extent = blockMap.findExtent(index);
+        long i = from;
+        while (i < to) {
+            if (index - blockMap.extentOffset(extent) >= blockMap.extentLength(extent)) {
+                extent++;
+            }
+            int offsetInBlock = (int) (i % blockSize);
+            int length = (int) Math.min(blockSize - offsetInBlock, to - i);
+            int blockId = blockMap.isHole(extent) ? ExtentMap.HOLE : blockMap.extentStart(extent) + index - blockMap.extentOffset(extent);
+            action.apply(blockId, offsetInBlock, length);
+            i += length;
+            index++;
+        }
+    }
+
+    // Holes already read as zeroes and are left alone
+    public void fillWithZeroes(Descriptor descriptor, long from, long to) {
         if (from >= to) return;
-        int c = 0;
 
-        List<Integer> blocksMap = descriptor.getBlockMap();
-        for (int i = from; i < to; i++) {
-            int blockIndex = i / Settings.BLOCK_SIZE;
-            int offsetInBlock = i % Settings.BLOCK_SIZE;
-            int blockId = blocksMap.get(blockIndex);
-            Block block = blocks[blockId];
-            block.write(offsetInBlock, (byte) 0);
-            c++;
+        boolean journaled = isJournaled(descriptor);
+        beginTransaction();
+        try {
+            if (refs.hasShared() && !unshare(descriptor, from, to)) {
+                return;
+            }
+            forEachSpan(descriptor, from, to, (blockId, offsetInBlock, length) -> {
+                if (blockId == ExtentMap.HOLE) {
+                    return;
+                }
+                if (journaled) {
+                    journal.logBlock(blockId);
+                }
+                device.fill(blockId, offsetInBlock, length, (byte) 0);
+            });
+        } finally {
+            commitTransaction();
         }
-        System.out.println("Wrote " + c + " zeroes");
+        Log.debug(() -> "Wrote " + (to - from) + " zeroes");
     }
 
-    public String read(Descriptor descriptor, int size, boolean logging) {
-        int from = descriptor.getOffset();
-        int to = from + size;
-        if (to >= descriptor.getFileSize()) {
-            to = descriptor.getFileSize();
+    // Copies bytes starting at position into buffer, one block-sized span at a time
+    public int read(Descriptor descriptor, long position, ByteBuffer buffer) {
+        long to = Math.min(position + buffer.remaining(), descriptor.getFileSize());
+        if (position < 0 || position >= to) {
+            return 0;
+        }
+        if (descriptor.isCompressed()) {
+            readChunks(descriptor, position, to, buffer);
+        } else {
+            readSpans(descriptor, position, to, buffer);
         }
-        List<Integer> blocksMap = descriptor.getBlockMap();
+        return (int) (to - position);
+    }
 
-        if (logging) {
-            System.out.println("Reading bytes from " + from + " to " + to);
+    private void readSpans(Descriptor descriptor, long position, long to, ByteBuffer buffer) {
+        forEachSpan(descriptor, position, to, (blockId, offsetInBlock, length) -> {
+            if (blockId == ExtentMap.HOLE) {
+                // Holes never touch the device
+                for (int i = 0; i < length; i++) {
+                    buffer.put((byte) 0);
+                }
+                return;
+            }
+            device.read(blockId, offsetInBlock, buffer, length);
+        });
+    }
+
+    public int write(Descriptor descriptor, long position, ByteBuffer buffer) {
+        long to = position + buffer.remaining();
+        if (position < 0 || to > descriptor.getFileSize()) {
+            Log.warn("Data exceeds file size. Aborting...");
+            return -1;
+        }
+        if (position == to) {
+            return 0;
+        }
+        if (descriptor.isCompressed()) {
+            beginTransaction();
+            try {
+                return writeChunks(descriptor, position, to, buffer) ? (int) (to - position) : -1;
+            } finally {
+                commitTransaction();
+            }
+        }
+        boolean journaled = isJournaled(descriptor);
+        beginTransaction();
+        try {
+            if (descriptor.getBlockMap().allocatedCount() < descriptor.getBlockMap().size()
+                    && !allocateHoles(descriptor, position, to)) {
+                return -1;
+            }
+            if (refs.hasShared() && !unshare(descriptor, position, to)) {
+                return -1;
+            }
+            forEachSpan(descriptor, position, to, (blockId, offsetInBlock, length) -> {
+                if (journaled) {
+                    journal.logBlock(blockId);
+                }
+                device.write(blockId, offsetInBlock, buffer, length);
+            });
+        } finally {
+            commitTransaction();
         }
+        return (int) (to - position);
+    }
+
+    // Bytes of the chunk that lie inside the file
+    private int chunkLength(Descriptor descriptor, int chunk) {
+        return (int) Math.min(chunkSize, descriptor.getFileSize() - (long) chunk * chunkSize);
+    }
 
-        StringBuilder buffer = new StringBuilder();
-        for (int i = from; i < to; i++) {
-            int blockIndex = i / Settings.BLOCK_SIZE;
-            int offsetInBlock = i % Settings.BLOCK_SIZE;
-            int blockId = blocksMap.get(blockIndex);
-            Block block = blocks[blockId];
-            buffer.append(block.read(offsetInBlock));
+    // Raw chunks are read in place, a compressed chunk is decompressed whole and only the part asked for is copied
+    private void readChunks(Descriptor descriptor, long position, long to, ByteBuffer buffer) {
+        ChunkMap chunkMap = descriptor.getChunkMap();
+        byte[] raw = null;
+        byte[] stored = null;
+        for (int chunk = (int) (position / chunkSize); (long) chunk * chunkSize < to; chunk++) {
+            long start = (long) chunk * chunkSize;
+            long from = Math.max(position, start);
+            long end = Math.min(to, start + chunkSize);
+            int length = chunkMap.get(chunk);
+            if (length == ChunkMap.RAW) {
+                readSpans(descriptor, from, end, buffer);
+                continue;
+            }
+            if (length == ChunkMap.HOLE) {
+                for (long i = from; i < end; i++) {
+                    buffer.put((byte) 0);
+                }
+                continue;
+            }
+            if (raw == null) {
+                raw = new byte[chunkSize];
+                stored = new byte[chunkSize];
+            }
+            loadChunk(descriptor, chunk, raw, stored);
+            buffer.put(raw, (int) (from - start), (int) (end - from));
         }
-        return buffer.toString();
     }
 
-    public String read(Descriptor descriptor, int size) {
-        return read(descriptor, size, false);
+    // Uncompressed bytes of the chunk into raw, zeroes past what is stored
+    private void loadChunk(Descriptor descriptor, int chunk, byte[] raw, byte[] stored) {
+        int length = descriptor.getChunkMap().get(chunk);
+        long start = (long) chunk * chunkSize;
+        int produced = 0;
+        if (length == ChunkMap.RAW) {
+            produced = (int) Math.min(chunkSize, (long) descriptor.getBlockMap().size() * blockSize - start);
+            readSpans(descriptor, start, start + produced, ByteBuffer.wrap(raw, 0, produced));
+        } else if (length != ChunkMap.HOLE) {
+            readSpans(descriptor, start, start + length, ByteBuffer.wrap(stored, 0, length));
+            long started = decompressTimer.start();
+            try {
+                produced = LzCodec.decompress(stored, length, raw);
+                decompressedBytes.add(produced);
+            } catch (IndexOutOfBoundsException e) {
+                // Data of files isn't journaled, a crash may leave a chunk that doesn't match its length
+                decompressTimer.recordError();
+                Log.warn("Chunk " + chunk + " of descriptor " + descriptor.getId() + " is damaged, it reads as zeroes");
+                produced = 0;
+            }
+            decompressTimer.record(started);
+        }
+        Arrays.fill(raw, produced, chunkSize, (byte) 0);
     }
 
-    public void write(Descriptor descriptor, String data) {
-        int from = descriptor.getOffset();
-        int to = from + data.length();
-        if (to >= descriptor.getFileSize()) {
-            System.out.println("Data exceeds file size. Aborting...");
-            return;
+    // Every chunk the write touches is stored again as a whole, the old bytes of a chunk it only partly covers
+    // are decompressed first
+    private boolean writeChunks(Descriptor descriptor, long position, long to, ByteBuffer buffer) {
+        byte[] raw = new byte[chunkSize];
+        byte[] stored = new byte[chunkSize];
+        for (int chunk = (int) (position / chunkSize); (long) chunk * chunkSize < to; chunk++) {
+            long start = (long) chunk * chunkSize;
+            long from = Math.max(position, start);
+            long end = Math.min(to, start + chunkSize);
+            int length = chunkLength(descriptor, chunk);
+            if (from > start || end < start + length) {
+                loadChunk(descriptor, chunk, raw, stored);
+            }
+            buffer.get(raw, (int) (from - start), (int) (end - from));
+            if (!storeChunk(descriptor, chunk, raw, length, stored)) {
+                storeBlockMap(descriptor);
+                return false;
+            }
         }
-        descriptor.setOffset(to);
-        List<Integer> blockMap = descriptor.getBlockMap();
-        int c = 0;
-        for (int i = from; i < to; i++) {
-            int blockIndex = i / Settings.BLOCK_SIZE;
-            int offsetInBlock = i % Settings.BLOCK_SIZE;
-            int blockId = blockMap.get(blockIndex);
-            Block block = blocks[blockId];
-            block.write(offsetInBlock, (byte) data.charAt(c++));
+        return storeBlockMap(descriptor);
+    }
+
+    // Whole chunks in [offset, to) become holes, the bytes of partly covered ones are zeroed and stored again
+    private void punchChunks(Descriptor descriptor, long offset, long to) {
+        ExtentMap blockMap = descriptor.getBlockMap();
+        ChunkMap chunkMap = descriptor.getChunkMap();
+        byte[] raw = null;
+        byte[] stored = null;
+        for (int chunk = (int) (offset / chunkSize); (long) chunk * chunkSize < to; chunk++) {
+            long start = (long) chunk * chunkSize;
+            long from = Math.max(offset, start);
+            long end = Math.min(to, start + chunkSize);
+            if (chunkMap.get(chunk) == ChunkMap.HOLE) {
+                continue;
+            }
+            if (from == start && end == start + chunkLength(descriptor, chunk)) {
+                int first = chunk * CHUNK_BLOCKS;
+                int slots = Math.min(CHUNK_BLOCKS, blockMap.size() - first);
+                releaseRange(blockMap, first, first + slots);
+                blockMap.replace(first, slots, ExtentMap.HOLE);
+                chunkMap.set(chunk, ChunkMap.HOLE);
+                continue;
+            }
+            if (raw == null) {
+                raw = new byte[chunkSize];
+                stored = new byte[chunkSize];
+            }
+            loadChunk(descriptor, chunk, raw, stored);
+            Arrays.fill(raw, (int) (from - start), (int) (end - start), (byte) 0);
+            if (!storeChunk(descriptor, chunk, raw, chunkLength(descriptor, chunk), stored)) {
+                break;
+            }
         }
+        storeBlockMap(descriptor);
     }
 
-    public void addEntry(Descriptor descriptorCWD, String name, int descriptorId) {
-        String entry = name + "@" + descriptorId + "/";
-        write(descriptorCWD, entry);
+    // Lowers the size of a compressed file, the chunk the new end falls into is stored again without the bytes past it
+    public void shrinkChunks(Descriptor descriptor, long size) {
+        beginTransaction();
+        try {
+            int chunk = (int) (size / chunkSize);
+            if (size % chunkSize != 0 && descriptor.getChunkMap().get(chunk) != ChunkMap.HOLE) {
+                byte[] raw = new byte[chunkSize];
+                byte[] stored = new byte[chunkSize];
+                loadChunk(descriptor, chunk, raw, stored);
+                storeChunk(descriptor, chunk, raw, (int) (size - (long) chunk * chunkSize), stored);
+            }
+            int difference = descriptor.getBlockMap().size() - calculateBlockNeeded(size);
+            if (difference > 0) {
+                freeBlocks(descriptor, difference);
+            } else {
+                storeBlockMap(descriptor);
+            }
+            descriptor.setFileSize(size);
+        } finally {
+            commitTransaction();
+        }
     }
 
-    public String readDirectory(Descriptor descriptorCWD) {
-        int offset = descriptorCWD.getOffset();
-        descriptorCWD.setOffset(0);
-        String contents = read(descriptorCWD, offset);
-        descriptorCWD.setOffset(offset);
-        return contents;
+    // Stores the first length bytes of raw as the chunk, compressed when that saves at least one block
+    private boolean storeChunk(Descriptor descriptor, int chunk, byte[] raw, int length, byte[] stored) {
+        int rawBlocks = calculateBlockNeeded(length);
+        long started = compressTimer.start();
+        int compressed = LzCodec.compress(raw, length, stored, (rawBlocks - 1) * blockSize);
+        compressTimer.record(started);
+        byte[] data = compressed > 0 ? stored : raw;
+        int dataLength = compressed > 0 ? compressed : length;
+        int blocks = calculateBlockNeeded(dataLength);
+        if (!placeChunk(descriptor, chunk, blocks)) {
+            return false;
+        }
+        Arrays.fill(data, dataLength, blocks * blockSize, (byte) 0);
+        long start = (long) chunk * chunkSize;
+        ByteBuffer source = ByteBuffer.wrap(data, 0, blocks * blockSize);
+        forEachSpan(descriptor, start, start + blocks * blockSize,
+                (blockId, offsetInBlock, spanLength) -> device.write(blockId, offsetInBlock, source, spanLength));
+        descriptor.getChunkMap().set(chunk, compressed > 0 ? compressed : ChunkMap.RAW);
+        compressedIn.add(length);
+        compressedOut.add(dataLength);
+        return true;
     }
 
-    public List<String[]> getEntries(Descriptor descriptorCWD) {
-        String contents = readDirectory(descriptorCWD);
-        String[] entries = contents.split("/");
-        List<String[]> result = new ArrayList<>();
-        for (String entry : entries) {
-            result.add(entry.split("@"));
+    // Backs the first blocks of the chunk with blocks only this file references and frees the rest. Blocks
+    // that are kept are overwritten in place
+    private boolean placeChunk(Descriptor descriptor, int chunk, int blocks) {
+        ExtentMap blockMap = descriptor.getBlockMap();
+        int first = chunk * CHUNK_BLOCKS;
+        int slots = Math.min(CHUNK_BLOCKS, blockMap.size() - first);
+        if (slots > blocks) {
+            releaseRange(blockMap, first + blocks, first + slots);
+            blockMap.replace(first + blocks, slots - blocks, ExtentMap.HOLE);
         }
-        return result;
+        if (refs.hasShared()) {
+            for (int index = first; index < first + blocks; index++) {
+                int blockId = blockMap.get(index);
+                if (blockId != ExtentMap.HOLE && refs.isShared(blockId)) {
+                    release(blockId, 1);
+                    blockMap.replace(index, 1, ExtentMap.HOLE);
+                }
+            }
+        }
+        return backHoles(descriptor, (long) first * blockSize, (long) (first + blocks) * blockSize);
     }
 
-    public int findDescriptorId(Descriptor descriptorCWD, String name) {
-        String contents = readDirectory(descriptorCWD);
-        String[] entries = contents.split("/");
-        for (String entry : entries) {
-            String[] buffer = entry.split("@");
-            if (buffer[0].equals(name)) {
-                return Integer.parseInt(buffer[1]);
+    // Bytes of the file kept in stored chunks per allocated byte, 1 when nothing is stored
+    public double compressionRatio(Descriptor descriptor) {
+        ChunkMap chunkMap = descriptor.getChunkMap();
+        long allocated = (long) descriptor.getBlockMap().allocatedCount() * blockSize;
+        if (chunkMap == null || allocated == 0) {
+            return 1;
+        }
+        long stored = 0;
+        for (int chunk = 0; chunk < chunkMap.size(); chunk++) {
+            if (chunkMap.get(chunk) != ChunkMap.HOLE) {
+                stored += chunkLength(descriptor, chunk);
             }
         }
-        return -1;
+        return (double) stored / allocated;
+    }
+
+    public int read(Descriptor descriptor, long position, byte[] data, int dataOffset, int length) {
+        return read(descriptor, position, ByteBuffer.wrap(data, dataOffset, length));
+    }
+
+    public int write(Descriptor descriptor, long position, byte[] data, int dataOffset, int length) {
+        return write(descriptor, position, ByteBuffer.wrap(data, dataOffset, length));
+    }
+
+    public String read(Descriptor descriptor, long position, int size) {
+        long to = Math.min(position + size, descriptor.getFileSize());
+        Log.debug(() -> "Reading bytes from " + position + " to " + to);
+
+        byte[] buffer = new byte[(int) Math.max(to - position, 0)];
+        int length = read(descriptor, position, buffer, 0, buffer.length);
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public int write(Descriptor descriptor, long position, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        return write(descriptor, position, bytes, 0, bytes.length);
+    }
+
+    public boolean resize(Descriptor descriptor, long size) {
+        int currentBlocks = descriptor.getBlockMap().size();
+        int neededBlocks = calculateBlockNeeded(size);
+        if (neededBlocks > currentBlocks && !allocateBlocks(descriptor, neededBlocks - currentBlocks)) {
+            return false;
+        }
+        if (neededBlocks < currentBlocks) {
+            freeBlocks(descriptor, currentBlocks - neededBlocks);
+        }
+        descriptor.setFileSize(size);
+        return true;
+    }
+
+    public boolean formatDirectory(Descriptor descriptorCWD) {
+        return directoryIndex.format(descriptorCWD);
+    }
+
+    public boolean addEntry(Descriptor descriptorCWD, String name, int descriptorId) {
+        return directoryIndex.addEntry(descriptorCWD, name, descriptorId);
+    }
+
+    public String readSymLink(Descriptor descriptor) {
+        return read(descriptor, 0, (int) descriptor.getFileSize());
+    }
+
+    public List<DirectoryEntry> getEntries(Descriptor descriptorCWD) {
+        return directoryIndex.getEntries(descriptorCWD);
+    }
+
+    public int findDescriptorId(Descriptor descriptorCWD, String name) {
+        return directoryIndex.findDescriptorId(descriptorCWD, name);
     }
 
     public void deleteEntry(Descriptor descriptorCWD, String name) {
-        String contents = readDirectory(descriptorCWD);
-        int descriptorId = findDescriptorId(descriptorCWD, name);
-        if (descriptorId == -1) {
-            System.out.println("File '" + name + "' not found");
-            return;
+        if (!directoryIndex.deleteEntry(descriptorCWD, name)) {
+            Log.warn(() -> "File '" + name + "' not found");
         }
-        String entryToRemove = name + "@" + descriptorId + "/";
-        String updatedContents = contents.replace(entryToRemove, "");
-        descriptorCWD.setOffset(0);
-        write(descriptorCWD, updatedContents);
     }
 
-    public String getDirName(Descriptor descriptorCWD) throws WrongTypeException, PathResolutionException {
-        if (!Objects.equals(descriptorCWD.getFileType(), "directory")) {
+    public boolean setEntryId(Descriptor descriptorCWD, String name, int descriptorId) {
+        return directoryIndex.setEntryId(descriptorCWD, name, descriptorId);
+    }
+
+    public int countEntries(Descriptor descriptorCWD) {
+        return directoryIndex.countEntries(descriptorCWD);
+    }
+
+    public String getDirName(Descriptor descriptorCWD, Descriptor parent) throws WrongTypeException, PathResolutionException {
+        if (!descriptorCWD.isDirectory()) {
             throw new WrongTypeException("Not a directory");
         }
-        String contents = readDirectory(descriptorCWD.getParent());
-        String[] entries = contents.split("/");
-        for (String entry : entries) {
-            String[] buffer = entry.split("@");
-            if (Integer.parseInt(buffer[1]) == descriptorCWD.getId()) {
-                return buffer[0];
-            }
+        String name = directoryIndex.findName(parent, descriptorCWD.getId());
+        if (name == null) {
+            throw new PathResolutionException("Directory not found");
         }
-        throw new PathResolutionException("Directory not found");
+        return name;
     }
 }
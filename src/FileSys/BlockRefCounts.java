@@ -0,0 +1,56 @@
+package FileSys;
+
+// References to data blocks beyond the first one, taken by snapshots. A block without extra references has a
+// single owner and is freed with it. Counts are kept in pages created on first use, a volume without snapshots
+// has none, and the number of shared blocks lets writers skip every lookup while it is zero
+public class BlockRefCounts {
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    private final int[][] pages;
+    private volatile int sharedBlocks = 0;
+
+    public BlockRefCounts(int blockCount) {
+        this.pages = new int[(blockCount + PAGE_MASK) >>> PAGE_SHIFT][];
+    }
+
+    public boolean hasShared() {
+        return sharedBlocks > 0;
+    }
+
+    public int getSharedBlocks() {
+        return sharedBlocks;
+    }
+
+    // Counts only grow while writers are kept out, so a writer never misses a reference. A stale count of a
+    // reference dropped meanwhile costs one needless copy
+    public boolean isShared(int blockId) {
+        int[] page = pages[blockId >>> PAGE_SHIFT];
+        return page != null && page[blockId & PAGE_MASK] > 0;
+    }
+
+    // Adds a reference to every block of the run
+    public synchronized void share(int start, int length) {
+        for (int blockId = start; blockId < start + length; blockId++) {
+            int[] page = pages[blockId >>> PAGE_SHIFT];
+            if (page == null) {
+                page = pages[blockId >>> PAGE_SHIFT] = new int[1 << PAGE_SHIFT];
+            }
+            if (page[blockId & PAGE_MASK]++ == 0) {
+                sharedBlocks++;
+            }
+        }
+    }
+
+    // Takes one reference away, returns true when it was the last one and the block can be freed
+    public synchronized boolean drop(int blockId) {
+        int[] page = pages[blockId >>> PAGE_SHIFT];
+        if (page == null || page[blockId & PAGE_MASK] == 0) {
+            return true;
+        }
+        if (--page[blockId & PAGE_MASK] == 0) {
+            sharedBlocks--;
+        }
+        return false;
+    }
+}
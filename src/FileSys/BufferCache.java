@@ -0,0 +1,389 @@
+package FileSys;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Write-back cache of whole blocks in front of a slower device, limited to a fixed number of bytes.
+// Dirty blocks reach the device when they are evicted, on flush and on close
+// The cache is split into independently locked segments by block id. A segment lock is only held to find or
+// replace a frame, bytes are copied and written back under the lock of the frame, so blocks of unrelated files
+// don't contend and no device access happens under a segment lock
+public class BufferCache implements BlockDevice {
+    private static final int SEGMENTS = 16;
+    // Every block a transaction changes stays pinned until it commits, a segment keeps enough frames for that
+    private static final int MIN_SEGMENT_FRAMES = 64;
+
+    private final BlockDevice device;
+    private final int blockSize;
+    private final int frames;
+    private final Segment[] segments;
+    private volatile Journal journal;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder writeBacks = new LongAdder();
+
+    public BufferCache(BlockDevice device, int budgetBytes, String policyName) {
+        this.device = device;
+        this.blockSize = device.getBlockSize();
+        int frameCount = Math.max(budgetBytes / blockSize, 1);
+        int segmentCount = Math.min(SEGMENTS, Integer.highestOneBit(Math.max(frameCount / MIN_SEGMENT_FRAMES, 1)));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(frameCount / segmentCount, policyName);
+        }
+        this.frames = frameCount / segmentCount * segmentCount;
+    }
+
+    private Segment segment(int blockId) {
+        return segments[blockId & (segments.length - 1)];
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return device.getBlockCount();
+    }
+
+    @Override
+    public void read(int blockId, int offset, ByteBuffer dst, int length) {
+        Segment segment = segment(blockId);
+        int frame = segment.lock(blockId, true);
+        try {
+            dst.put(segment.arena, frame * blockSize + offset, length);
+        } finally {
+            segment.unlock(frame);
+        }
+    }
+
+    @Override
+    public void write(int blockId, int offset, ByteBuffer src, int length) {
+        Segment segment = segment(blockId);
+        // A write covering the whole block doesn't need the old contents
+        int frame = segment.lock(blockId, length < blockSize);
+        try {
+            src.get(segment.arena, frame * blockSize + offset, length);
+            segment.dirty[frame] = true;
+        } finally {
+            segment.unlock(frame);
+        }
+    }
+
+    @Override
+    public void fill(int blockId, int offset, int length, byte value) {
+        Segment segment = segment(blockId);
+        int frame = segment.lock(blockId, length < blockSize);
+        try {
+            Arrays.fill(segment.arena, frame * blockSize + offset, frame * blockSize + offset + length, value);
+            segment.dirty[frame] = true;
+        } finally {
+            segment.unlock(frame);
+        }
+    }
+
+    // Freed blocks are dropped without being written back. Nobody reads or writes a block while it is freed
+    @Override
+    public void release(int blockId, int count) {
+        for (int i = blockId; i < blockId + count; i++) {
+            segment(i).release(i);
+        }
+        device.release(blockId, count);
+    }
+
+    // Pinned blocks stay in memory until they are unpinned as many times as they were pinned
+    public void pin(int blockId) {
+        segment(blockId).pin(blockId);
+    }
+
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    public void markLogged(int blockId) {
+        segment(blockId).markLogged(blockId);
+    }
+
+    public void unpin(int blockId) {
+        segment(blockId).unpin(blockId);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (Segment segment : segments) {
+            segment.flush(journal != null);
+        }
+        device.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.flush(false);
+        }
+        device.close();
+    }
+
+    public int getCapacity() {
+        return frames;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getWriteBacks() {
+        return writeBacks.sum();
+    }
+
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    private final class Segment {
+        private final int frames;
+        private final EvictionPolicy policy;
+        // All frames of the segment share one array, frame i holds bytes [i * blockSize, (i + 1) * blockSize)
+        private final byte[] arena;
+        private final int[] frameBlock;
+        private final AtomicIntegerArray pinCount;
+        private final boolean[] dirty;
+        // Set once the journal holds the latest change of the block, the journal is then flushed before the block
+        private final boolean[] logged;
+        // Readers, writers and flushes that found a frame and haven't finished with it, such a frame isn't evicted
+        private final AtomicIntegerArray users;
+        private final ReentrantLock[] frameLocks;
+        private final Map<Integer, Integer> blockFrame = new HashMap<>();
+        private final Deque<Integer> freeFrames = new ArrayDeque<>();
+        // Evicted dirty blocks that aren't home yet, to the frame writing them. A miss on one waits for that frame
+        private final Map<Integer, Integer> writing = new ConcurrentHashMap<>();
+
+        private Segment(int frames, String policyName) {
+            this.frames = frames;
+            this.policy = EvictionPolicy.create(policyName, frames);
+            this.arena = new byte[frames * blockSize];
+            this.frameBlock = new int[frames];
+            this.pinCount = new AtomicIntegerArray(frames);
+            this.dirty = new boolean[frames];
+            this.logged = new boolean[frames];
+            this.users = new AtomicIntegerArray(frames);
+            this.frameLocks = new ReentrantLock[frames];
+            Arrays.fill(frameBlock, -1);
+            for (int frame = 0; frame < frames; frame++) {
+                frameLocks[frame] = new ReentrantLock();
+                freeFrames.add(frame);
+            }
+        }
+
+        // Returns the frame of the block with its lock held. A frame taken for the block is locked before it is
+        // published, the block it held is written back and the new one loaded after the segment is unlocked
+        private int lock(int blockId, boolean load) {
+            while (true) {
+                int frame;
+                int evicted = -1;
+                Integer pending = null;
+                boolean taken = false;
+                synchronized (this) {
+                    Integer cached = blockFrame.get(blockId);
+                    if (cached != null) {
+                        hits.increment();
+                        policy.accessed(cached);
+                        frame = cached;
+                        users.incrementAndGet(frame);
+                    } else if ((pending = writing.get(blockId)) != null) {
+                        frame = pending;
+                    } else {
+                        misses.increment();
+                        if (freeFrames.isEmpty()) {
+                            frame = evict();
+                            // Its last user let go of it before it could be chosen, so the flag is current
+                            if (dirty[frame]) {
+                                evicted = frameBlock[frame];
+                                writing.put(evicted, frame);
+                            }
+                        } else {
+                            frame = freeFrames.poll();
+                        }
+                        frameBlock[frame] = blockId;
+                        blockFrame.put(blockId, frame);
+                        policy.inserted(frame, blockId);
+                        users.incrementAndGet(frame);
+                        // Unused and not in the map until now, nobody else holds its lock
+                        frameLocks[frame].lock();
+                        taken = true;
+                    }
+                }
+                if (pending != null) {
+                    // The block is read again once the frame that holds its last contents has written them home
+                    frameLocks[frame].lock();
+                    frameLocks[frame].unlock();
+                    continue;
+                }
+                if (!taken) {
+                    frameLocks[frame].lock();
+                    return frame;
+                }
+                try {
+                    if (evicted != -1) {
+                        try {
+                            writeBack(frame, evicted);
+                        } finally {
+                            writing.remove(evicted);
+                        }
+                    }
+                    logged[frame] = false;
+                    if (load) {
+                        device.read(blockId, 0, ByteBuffer.wrap(arena, frame * blockSize, blockSize), blockSize);
+                    }
+                } catch (RuntimeException e) {
+                    // The segment lock is never waited for while a frame lock is held
+                    frameLocks[frame].unlock();
+                    release(blockId);
+                    users.decrementAndGet(frame);
+                    throw e;
+                }
+                return frame;
+            }
+        }
+
+        private void unlock(int frame) {
+            frameLocks[frame].unlock();
+            users.decrementAndGet(frame);
+        }
+
+        // The frame leaves the map first so nobody else can reach it while its contents are dropped
+        private void release(int blockId) {
+            Integer frame;
+            synchronized (this) {
+                frame = blockFrame.remove(blockId);
+                if (frame == null) {
+                    return;
+                }
+                policy.removed(frame);
+                pinCount.set(frame, 0);
+            }
+            frameLocks[frame].lock();
+            try {
+                frameBlock[frame] = -1;
+                dirty[frame] = false;
+                logged[frame] = false;
+            } finally {
+                frameLocks[frame].unlock();
+            }
+            synchronized (this) {
+                freeFrames.add(frame);
+            }
+        }
+
+        // The frame can't be evicted while it has a user, so it is still the block's when the pin is counted
+        private void pin(int blockId) {
+            int frame = lock(blockId, true);
+            frameLocks[frame].unlock();
+            pinCount.incrementAndGet(frame);
+            users.decrementAndGet(frame);
+        }
+
+        private synchronized void markLogged(int blockId) {
+            Integer frame = blockFrame.get(blockId);
+            if (frame != null) {
+                logged[frame] = true;
+            }
+        }
+
+        // Follows markLogged, a write-back that sees the pin gone sees the flag as well
+        private synchronized void unpin(int blockId) {
+            Integer frame = blockFrame.get(blockId);
+            if (frame != null && pinCount.get(frame) > 0) {
+                pinCount.decrementAndGet(frame);
+            }
+        }
+
+        // Blocks are collected under the segment lock and each is written under the lock of its frame only. Pinned
+        // frames may hold changes of a running transaction, the journal writes their committed contents home
+        private void flush(boolean skipPinned) {
+            int[] blocks;
+            synchronized (this) {
+                blocks = blockFrame.keySet().stream().mapToInt(Integer::intValue).toArray();
+            }
+            for (int blockId : blocks) {
+                int frame;
+                synchronized (this) {
+                    Integer cached = blockFrame.get(blockId);
+                    if (cached == null) {
+                        continue;
+                    }
+                    frame = cached;
+                    users.incrementAndGet(frame);
+                }
+                frameLocks[frame].lock();
+                try {
+                    if (frameBlock[frame] == blockId && !(skipPinned && pinCount.get(frame) > 0)) {
+                        writeBack(frame, blockId);
+                    }
+                } finally {
+                    unlock(frame);
+                }
+            }
+        }
+
+        private synchronized int getSize() {
+            return blockFrame.size();
+        }
+
+        // Detaches the victim, its caller writes it back once the segment is unlocked
+        private int evict() {
+            int frame = policy.victim(f -> pinCount.get(f) == 0 && users.get(f) == 0);
+            if (frame == -1) {
+                throw new IllegalStateException("Every buffer cache frame is pinned");
+            }
+            policy.removed(frame);
+            blockFrame.remove(frameBlock[frame]);
+            evictions.increment();
+            return frame;
+        }
+
+        // Called with the lock of the frame held
+        private void writeBack(int frame, int blockId) {
+            if (dirty[frame]) {
+                if (logged[frame]) {
+                    journal.flush();
+                    logged[frame] = false;
+                }
+                device.write(blockId, 0, ByteBuffer.wrap(arena, frame * blockSize, blockSize), blockSize);
+                dirty[frame] = false;
+                writeBacks.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package FileSys;
+
+import java.util.Arrays;
+
+// Stored length of every chunk of a compressed file. Chunk i covers the logical blocks
+// [i * COMPRESSION_CHUNK_BLOCKS, (i + 1) * COMPRESSION_CHUNK_BLOCKS) of the block map and keeps its data in the
+// first of them, the rest are holes. Chunks past the end of the map are holes
+public class ChunkMap {
+    // Nothing stored, the chunk reads as zeroes
+    public static final int HOLE = 0;
+    // Stored as is in all of its blocks, compressing it didn't save a block
+    public static final int RAW = -1;
+    private static final int[] EMPTY = new int[0];
+
+    private int[] lengths = EMPTY;
+    private int count = 0;
+
+    // Number of chunks with an entry
+    public int size() {
+        return count;
+    }
+
+    public int get(int chunk) {
+        return chunk < count ? lengths[chunk] : HOLE;
+    }
+
+    public void set(int chunk, int length) {
+        if (chunk >= lengths.length) {
+            lengths = Arrays.copyOf(lengths, Math.max(chunk + 1, lengths.length * 2));
+        }
+        if (chunk >= count) {
+            count = chunk + 1;
+        }
+        lengths[chunk] = length;
+    }
+
+    // Drops the entries of chunks from newSize on
+    public void truncate(int newSize) {
+        if (newSize < count) {
+            Arrays.fill(lengths, newSize, count, HOLE);
+            count = newSize;
+        }
+    }
+
+    public ChunkMap copy() {
+        ChunkMap copy = new ChunkMap();
+        copy.lengths = Arrays.copyOf(lengths, count);
+        copy.count = count;
+        return copy;
+    }
+}
@@ -0,0 +1,49 @@
+package FileSys;
+
+import java.util.function.IntPredicate;
+
+// Second chance: a hit only sets a bit, so accesses never reorder anything
+public class ClockPolicy implements EvictionPolicy {
+    private final boolean[] used;
+    private final boolean[] referenced;
+    private int hand = 0;
+
+    public ClockPolicy(int frames) {
+        this.used = new boolean[frames];
+        this.referenced = new boolean[frames];
+    }
+
+    @Override
+    public void inserted(int frame, int blockId) {
+        used[frame] = true;
+        referenced[frame] = true;
+    }
+
+    @Override
+    public void accessed(int frame) {
+        referenced[frame] = true;
+    }
+
+    @Override
+    public void removed(int frame) {
+        used[frame] = false;
+        referenced[frame] = false;
+    }
+
+    @Override
+    public int victim(IntPredicate evictable) {
+        // Two sweeps clear every reference bit, so a third would find nothing new
+        for (int step = 0; step < 2 * used.length; step++) {
+            int frame = hand;
+            hand = (hand + 1) % used.length;
+            if (!used[frame] || !evictable.test(frame)) {
+                continue;
+            }
+            if (!referenced[frame]) {
+                return frame;
+            }
+            referenced[frame] = false;
+        }
+        return -1;
+    }
+}
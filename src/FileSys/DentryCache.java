@@ -0,0 +1,219 @@
+package FileSys;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded (parent id, name) -> descriptor id cache with CLOCK eviction, -1 is cached for names that don't exist
+// The cache is split into independently locked segments, so lookups from different threads rarely contend
+public class DentryCache {
+    public static final int MISS = -2;
+    private static final int SEGMENTS = 16;
+
+    private final int capacity;
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public DentryCache(int capacity) {
+        int segmentCount = Math.min(SEGMENTS, Integer.highestOneBit(Math.max(capacity / 16, 1)));
+        this.capacity = capacity;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0));
+        }
+    }
+
+    private static int hash(int parentId, String name) {
+        int hash = parentId * 31 + name.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private Segment segment(int hash) {
+        return segments[(hash >>> 24) & (segments.length - 1)];
+    }
+
+    public int get(int parentId, String name) {
+        int hash = hash(parentId, name);
+        int descriptorId = segment(hash).get(hash, parentId, name);
+        if (descriptorId == MISS) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return descriptorId;
+    }
+
+    public void put(int parentId, String name, int descriptorId) {
+        int hash = hash(parentId, name);
+        if (segment(hash).put(hash, parentId, name, descriptorId)) {
+            evictions.increment();
+        }
+    }
+
+    public void invalidate(int parentId, String name) {
+        int hash = hash(parentId, name);
+        segment(hash).invalidate(hash, parentId, name);
+    }
+
+    // Drops every entry looked up inside a directory, used once the directory itself is removed
+    public void invalidateDirectory(int parentId) {
+        for (Segment segment : segments) {
+            segment.invalidateDirectory(parentId);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private static class Segment {
+        private final int capacity;
+        private final int[] buckets;
+        private final int[] next;
+        private final int[] hashes;
+        private final int[] parentIds;
+        private final String[] names;
+        private final int[] descriptorIds;
+        private final boolean[] referenced;
+        private int freeHead;
+        private int hand = 0;
+        private int size = 0;
+
+        private Segment(int capacity) {
+            this.capacity = capacity;
+            this.buckets = new int[Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1];
+            this.next = new int[capacity];
+            this.hashes = new int[capacity];
+            this.parentIds = new int[capacity];
+            this.names = new String[capacity];
+            this.descriptorIds = new int[capacity];
+            this.referenced = new boolean[capacity];
+            clear();
+        }
+
+        private synchronized int get(int hash, int parentId, String name) {
+            int slot = find(hash, parentId, name);
+            if (slot == -1) {
+                return MISS;
+            }
+            referenced[slot] = true;
+            return descriptorIds[slot];
+        }
+
+        // Returns true if an entry had to be evicted
+        private synchronized boolean put(int hash, int parentId, String name, int descriptorId) {
+            boolean evicted = false;
+            int slot = find(hash, parentId, name);
+            if (slot == -1) {
+                if (freeHead == -1) {
+                    evict();
+                    evicted = true;
+                }
+                slot = freeHead;
+                freeHead = next[slot];
+                int bucket = hash & (buckets.length - 1);
+                hashes[slot] = hash;
+                parentIds[slot] = parentId;
+                names[slot] = name;
+                next[slot] = buckets[bucket];
+                buckets[bucket] = slot;
+                size++;
+            }
+            descriptorIds[slot] = descriptorId;
+            referenced[slot] = true;
+            return evicted;
+        }
+
+        private synchronized void invalidate(int hash, int parentId, String name) {
+            int bucket = hash & (buckets.length - 1);
+            int previous = -1;
+            for (int slot = buckets[bucket]; slot != -1; previous = slot, slot = next[slot]) {
+                if (parentIds[slot] == parentId && names[slot].equals(name)) {
+                    unlink(bucket, previous, slot);
+                    return;
+                }
+            }
+        }
+
+        private synchronized void invalidateDirectory(int parentId) {
+            for (int slot = 0; slot < capacity; slot++) {
+                if (names[slot] != null && parentIds[slot] == parentId) {
+                    invalidate(hashes[slot], parentId, names[slot]);
+                }
+            }
+        }
+
+        private synchronized void clear() {
+            Arrays.fill(buckets, -1);
+            Arrays.fill(names, null);
+            for (int slot = 0; slot < capacity; slot++) {
+                next[slot] = slot + 1 < capacity ? slot + 1 : -1;
+            }
+            freeHead = capacity > 0 ? 0 : -1;
+            size = 0;
+        }
+
+        private synchronized int getSize() {
+            return size;
+        }
+
+        private int find(int hash, int parentId, String name) {
+            for (int slot = buckets[hash & (buckets.length - 1)]; slot != -1; slot = next[slot]) {
+                if (hashes[slot] == hash && parentIds[slot] == parentId && names[slot].equals(name)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private void evict() {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % capacity;
+            }
+            int victim = hand;
+            hand = (hand + 1) % capacity;
+            invalidate(hashes[victim], parentIds[victim], names[victim]);
+        }
+
+        private void unlink(int bucket, int previous, int slot) {
+            if (previous == -1) {
+                buckets[bucket] = next[slot];
+            } else {
+                next[previous] = next[slot];
+            }
+            names[slot] = null;
+            referenced[slot] = false;
+            next[slot] = freeHead;
+            freeHead = slot;
+            size--;
+        }
+    }
+}
@@ -1,78 +1,119 @@
 package FileSys;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+// View of one slot of the InodeTable. Views are made for every lookup and not kept by the table, two views of the
+// same file compare equal
 public class Descriptor {
     private final int id;
-    private final int fileType;
-    private int linkAm = 0;
-    private int fileSize = 0;
-    private int offset = 0;
-    private Descriptor parent;
-    private List<Integer> blockMap = new ArrayList<>();
-
-    public Descriptor(int id, Descriptor parent, int fileType) {
+    private final InodeTable inodes;
+    // Generation of the slot when the view was made
+    private final int generation;
+
+    public Descriptor(InodeTable inodes, int id) {
+        this.inodes = inodes;
         this.id = id;
-        this.parent = parent;
-        // false - file, true - directory
-        this.fileType = fileType;
+        this.generation = inodes.getGeneration(id);
+    }
+
+    // The slot may be reused afterwards, so a removed view must not be read through anymore
+    public boolean isRemoved() {
+        return inodes.getGeneration(id) != generation || !inodes.isUsed(id);
+    }
+
+    // Guards the size, links and block map, see FileManager for the order locks are taken in
+    public ReentrantReadWriteLock getLock() {
+        return inodes.getLock(id);
     }
 
     public int getId() {
         return id;
     }
 
-    public Descriptor getParent() {
-        return parent;
+    public int getParentId() {
+        return inodes.getParent(id);
+    }
+
+    public void setParentId(int parentId) {
+        inodes.setParent(id, parentId);
     }
 
     public String getFileType() {
-        return switch (this.fileType) {
-            case 0 -> "file";
-            case 1 -> "directory";
-            case 2 -> "symLink";
+        return switch (getFileTypeCode()) {
+            case InodeTable.FILE -> "file";
+            case InodeTable.DIRECTORY -> "directory";
+            case InodeTable.SYMLINK -> "symLink";
             default -> "";
         };
     }
 
-    public int getOffset() {
-        return offset;
+    public int getFileTypeCode() {
+        return inodes.getType(id);
     }
 
-    public void setOffset(int offset) {
-        if (offset > fileSize) {
-            System.out.println("Offset out of bounds\n" +
-                    "Requested offset: " + offset +"\n" +
-                    "Space available: " + fileSize);
-            return;
-        }
-        this.offset = offset;
+    public boolean isFile() {
+        return inodes.getType(id) == InodeTable.FILE;
+    }
+
+    public boolean isDirectory() {
+        return inodes.getType(id) == InodeTable.DIRECTORY;
+    }
+
+    public boolean isSymlink() {
+        return inodes.getType(id) == InodeTable.SYMLINK;
     }
 
     public void increaseLinksAmount(){
-        linkAm++;
+        inodes.setLinks(id, inodes.getLinks(id) + 1);
     }
 
     public void decreaseLinksAmount(){
-        if(linkAm > 0){
-            linkAm--;
+        if(inodes.getLinks(id) > 0){
+            inodes.setLinks(id, inodes.getLinks(id) - 1);
         }
     }
 
     public int getLinkAm() {
-        return linkAm;
+        return inodes.getLinks(id);
     }
 
-    public int getFileSize() {
-        return fileSize;
+    public long getFileSize() {
+        return inodes.getSize(id);
     }
 
-    public void setFileSize(int fileSize) {
-        this.fileSize = fileSize;
+    public void setFileSize(long fileSize) {
+        inodes.setSize(id, fileSize);
     }
 
-    public List<Integer> getBlockMap() {
-        return blockMap;
+    public ExtentMap getBlockMap() {
+        return inodes.getBlockMap(id);
+    }
+
+    public boolean isCompressed() {
+        return (inodes.getFlags(id) & InodeTable.COMPRESSED) != 0;
+    }
+
+    // Null unless the file is compressed
+    public ChunkMap getChunkMap() {
+        return inodes.getChunkMap(id);
+    }
+
+    public ExtentMap getMapChain() {
+        return inodes.getMapChain(id);
+    }
+
+    public DescriptorTable getTable() {
+        return inodes.getStore();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Descriptor descriptor && descriptor.inodes == inodes && descriptor.id == id
+                && descriptor.generation == generation;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
     }
 }
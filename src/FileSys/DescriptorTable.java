@@ -0,0 +1,105 @@
+package FileSys;
+
+import java.nio.ByteBuffer;
+
+// Fixed-size descriptor records stored in the volume image
+public class DescriptorTable {
+    public static final int RECORD_SIZE = 32;
+
+    private static final int TYPE = 0;
+    private static final int LINKS = 4;
+    private static final int SIZE = 8;
+    private static final int PARENT = 16;
+    private static final int MAP_HEAD = 20;
+    private static final int MAP_LENGTH = 24;
+    private static final int FLAGS = 28;
+
+    private final int capacity;
+    private final ByteBuffer records;
+    private Journal journal;
+
+    public DescriptorTable(int capacity, ByteBuffer records, boolean format) {
+        this.capacity = capacity;
+        this.records = records;
+        if (format) {
+            for (int id = 0; id < capacity; id++) {
+                remove(id);
+            }
+        }
+    }
+
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    private void logged(int id) {
+        if (journal != null) {
+            journal.logDescriptor(id);
+        }
+    }
+
+    public void copyRecord(int id, ByteBuffer dst) {
+        dst.put(records.slice(id * RECORD_SIZE, RECORD_SIZE));
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isUsed(int id) {
+        return records.getInt(id * RECORD_SIZE + TYPE) != -1;
+    }
+
+    public int getFileType(int id) {
+        return records.getInt(id * RECORD_SIZE + TYPE);
+    }
+
+    public int getLinkAm(int id) {
+        return records.getInt(id * RECORD_SIZE + LINKS);
+    }
+
+    public long getFileSize(int id) {
+        return records.getLong(id * RECORD_SIZE + SIZE);
+    }
+
+    public int getParentId(int id) {
+        return records.getInt(id * RECORD_SIZE + PARENT);
+    }
+
+    public int getMapHead(int id) {
+        return records.getInt(id * RECORD_SIZE + MAP_HEAD);
+    }
+
+    public int getMapLength(int id) {
+        return records.getInt(id * RECORD_SIZE + MAP_LENGTH);
+    }
+
+    public int getFlags(int id) {
+        return records.getInt(id * RECORD_SIZE + FLAGS);
+    }
+
+    public void store(int id, int type, int links, long size, int parentId, int flags) {
+        int base = id * RECORD_SIZE;
+        records.putInt(base + TYPE, type);
+        records.putInt(base + LINKS, links);
+        records.putLong(base + SIZE, size);
+        records.putInt(base + PARENT, parentId);
+        records.putInt(base + FLAGS, flags);
+        logged(id);
+    }
+
+    public void storeBlockMap(int id, int mapHead, int mapLength) {
+        int base = id * RECORD_SIZE;
+        records.putInt(base + MAP_HEAD, mapHead);
+        records.putInt(base + MAP_LENGTH, mapLength);
+        logged(id);
+    }
+
+    public void remove(int id) {
+        int base = id * RECORD_SIZE;
+        records.putInt(base + TYPE, -1);
+        records.putInt(base + MAP_HEAD, -1);
+        records.putInt(base + MAP_LENGTH, 0);
+        logged(id);
+    }
+}
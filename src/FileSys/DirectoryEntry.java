@@ -0,0 +1,4 @@
+package FileSys;
+
+public record DirectoryEntry(String name, int id) {
+}
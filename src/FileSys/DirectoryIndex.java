@@ -0,0 +1,434 @@
+package FileSys;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Directory layout: an extendible hash over buckets of Settings.DIR_BUCKET_SIZE bytes. The first bucket-sized
+// region holds the header and, while it fits there, the bucket table. The table maps the low depth bits of a
+// name hash to a bucket, a full bucket is split in two and the table doubles when the bucket already used
+// every bit. A lookup reads the header, one table slot and one bucket whatever the size of the directory
+// Header - [magic][entries][depth][table offset][table capacity][end of the directory]
+// Bucket - [local depth][live entries][bytes of entries][bytes of deleted entries and slack], then the entries
+// Entry - [descriptor id][name hash][entry size][name length][name bytes], descriptor id -1 marks a deleted entry.
+// Deleting an entry only marks it, an insert takes the first deleted entry that is large enough and a bucket
+// without room is compacted before it is split
+public class DirectoryIndex {
+    public static final int MAX_NAME_LENGTH = 255;
+
+    private static final int MAGIC = 0x44495233;
+    private static final int HEADER_SIZE = 24;
+    private static final int SLOT_SIZE = 4;
+    private static final int BUCKET_SIZE = Settings.DIR_BUCKET_SIZE;
+    private static final int BUCKET_HEADER_SIZE = 12;
+    private static final int ENTRY_HEADER_SIZE = 12;
+
+    private static final int H_MAGIC = 0;
+    private static final int H_ENTRIES = 4;
+    private static final int H_DEPTH = 8;
+    private static final int H_TABLE = 12;
+    private static final int H_TABLE_CAPACITY = 16;
+    private static final int H_END = 20;
+
+    private static final int B_DEPTH = 0;
+    private static final int B_COUNT = 4;
+    private static final int B_USED = 6;
+    private static final int B_DEAD = 8;
+
+    private static final int E_ID = 0;
+    private static final int E_HASH = 4;
+    private static final int E_SIZE = 8;
+    private static final int E_NAME_LENGTH = 10;
+
+    private static final int DELETED = -1;
+
+    private final BlockManager blockManager;
+    // Callers lock the directory, so the only state shared between threads here are these per-thread buffers
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private static class Scratch {
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        private final ByteBuffer bucket = ByteBuffer.allocate(BUCKET_SIZE);
+        private final ByteBuffer split = ByteBuffer.allocate(BUCKET_SIZE);
+    }
+
+    public DirectoryIndex(BlockManager blockManager) {
+        this.blockManager = blockManager;
+    }
+
+    // An empty directory is the header with a one-slot table and a single bucket
+    public boolean format(Descriptor directory) {
+        if (!blockManager.resize(directory, 2 * BUCKET_SIZE)) {
+            return false;
+        }
+        Scratch buffers = scratch.get();
+        buffers.header.putInt(H_MAGIC, MAGIC).putInt(H_ENTRIES, 0).putInt(H_DEPTH, 0).putInt(H_TABLE, HEADER_SIZE)
+                .putInt(H_TABLE_CAPACITY, BUCKET_SIZE - HEADER_SIZE).putInt(H_END, 2 * BUCKET_SIZE);
+        writeHeader(directory, buffers);
+        writeSlot(directory, HEADER_SIZE, BUCKET_SIZE, buffers);
+        Arrays.fill(buffers.bucket.array(), (byte) 0);
+        writeBucket(directory, BUCKET_SIZE, buffers.bucket);
+        return true;
+    }
+
+    public boolean addEntry(Descriptor directory, String name, int descriptorId) {
+        Scratch buffers = scratch.get();
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME_LENGTH) {
+            Log.warn(() -> "Name '" + name + "' is too long");
+            return false;
+        }
+        int entrySize = ENTRY_HEADER_SIZE + nameBytes.length;
+        int hash = hash(name);
+        while (true) {
+            int bucketOffset = locate(directory, hash, buffers);
+            ByteBuffer bucket = buffers.bucket;
+            readBucket(directory, bucketOffset, bucket);
+            int used = bucket.getShort(B_USED);
+            int dead = bucket.getShort(B_DEAD);
+            int position = findDeleted(bucket, entrySize);
+            if (position != -1) {
+                // The deleted entry keeps its size, what the name doesn't fill stays counted as dead
+                bucket.putShort(B_DEAD, (short) (dead - entrySize));
+            } else {
+                if (BUCKET_HEADER_SIZE + used + entrySize > BUCKET_SIZE && BUCKET_HEADER_SIZE + used - dead + entrySize <= BUCKET_SIZE) {
+                    compact(bucket);
+                    used = bucket.getShort(B_USED);
+                }
+                if (BUCKET_HEADER_SIZE + used + entrySize > BUCKET_SIZE) {
+                    if (!split(directory, bucketOffset, hash, buffers)) {
+                        Log.warn(() -> "Directory has no room for '" + name + "'");
+                        return false;
+                    }
+                    continue;
+                }
+                position = BUCKET_HEADER_SIZE + used;
+                bucket.putShort(position + E_SIZE, (short) entrySize);
+                bucket.putShort(B_USED, (short) (used + entrySize));
+            }
+            bucket.putInt(position + E_ID, descriptorId).putInt(position + E_HASH, hash)
+                    .putShort(position + E_NAME_LENGTH, (short) nameBytes.length).put(position + ENTRY_HEADER_SIZE, nameBytes);
+            bucket.putShort(B_COUNT, (short) (bucket.getShort(B_COUNT) + 1));
+            writeBucket(directory, bucketOffset, bucket);
+            buffers.header.putInt(H_ENTRIES, buffers.header.getInt(H_ENTRIES) + 1);
+            writeHeader(directory, buffers);
+            return true;
+        }
+    }
+
+    public int findDescriptorId(Descriptor directory, String name) {
+        Scratch buffers = scratch.get();
+        int hash = hash(name);
+        readBucket(directory, locate(directory, hash, buffers), buffers.bucket);
+        int position = findInBucket(buffers.bucket, name, hash);
+        return position == -1 ? -1 : buffers.bucket.getInt(position + E_ID);
+    }
+
+    public boolean deleteEntry(Descriptor directory, String name) {
+        Scratch buffers = scratch.get();
+        int hash = hash(name);
+        int bucketOffset = locate(directory, hash, buffers);
+        ByteBuffer bucket = buffers.bucket;
+        readBucket(directory, bucketOffset, bucket);
+        int position = findInBucket(bucket, name, hash);
+        if (position == -1) {
+            return false;
+        }
+        // Only the descriptor id and the bucket header are written, the space is reused or compacted later.
+        // The last entry of the bucket is cut off instead
+        int entrySize = bucket.getShort(position + E_SIZE);
+        int slack = entrySize - ENTRY_HEADER_SIZE - bucket.getShort(position + E_NAME_LENGTH);
+        int used = bucket.getShort(B_USED);
+        if (position + entrySize == BUCKET_HEADER_SIZE + used) {
+            bucket.putShort(B_USED, (short) (used - entrySize)).putShort(B_DEAD, (short) (bucket.getShort(B_DEAD) - slack));
+        } else {
+            bucket.putShort(B_DEAD, (short) (bucket.getShort(B_DEAD) + entrySize - slack));
+            writeSlot(directory, bucketOffset + position + E_ID, DELETED, buffers);
+        }
+        bucket.putShort(B_COUNT, (short) (bucket.getShort(B_COUNT) - 1));
+        bucket.clear().limit(BUCKET_HEADER_SIZE);
+        blockManager.write(directory, bucketOffset, bucket);
+        buffers.header.putInt(H_ENTRIES, buffers.header.getInt(H_ENTRIES) - 1);
+        writeHeader(directory, buffers);
+        return true;
+    }
+
+    // Points an existing entry at another descriptor in place, the entry keeps its place in the bucket
+    public boolean setEntryId(Descriptor directory, String name, int descriptorId) {
+        Scratch buffers = scratch.get();
+        int hash = hash(name);
+        int bucketOffset = locate(directory, hash, buffers);
+        readBucket(directory, bucketOffset, buffers.bucket);
+        int position = findInBucket(buffers.bucket, name, hash);
+        if (position == -1) {
+            return false;
+        }
+        writeSlot(directory, bucketOffset + position + E_ID, descriptorId, buffers);
+        return true;
+    }
+
+    // Number of live entries, "." and ".." included
+    public int countEntries(Descriptor directory) {
+        Scratch buffers = scratch.get();
+        readHeader(directory, buffers);
+        return buffers.header.getInt(H_ENTRIES);
+    }
+
+    // Returns the name of an entry pointing to descriptorId, or null. Visits every bucket
+    public String findName(Descriptor directory, int descriptorId) {
+        String[] found = new String[1];
+        forEachBucket(directory, bucket -> {
+            int end = BUCKET_HEADER_SIZE + bucket.getShort(B_USED);
+            for (int position = BUCKET_HEADER_SIZE; found[0] == null && position < end; position += bucket.getShort(position + E_SIZE)) {
+                if (bucket.getInt(position + E_ID) == descriptorId) {
+                    found[0] = new String(bucket.array(), position + ENTRY_HEADER_SIZE, bucket.getShort(position + E_NAME_LENGTH),
+                            StandardCharsets.UTF_8);
+                }
+            }
+        });
+        return found[0];
+    }
+
+    // Entries sorted by name. Hash order means nothing to a reader, so the buckets are collected and sorted
+    public List<DirectoryEntry> getEntries(Descriptor directory) {
+        List<DirectoryEntry> result = new ArrayList<>();
+        forEachBucket(directory, bucket -> {
+            int end = BUCKET_HEADER_SIZE + bucket.getShort(B_USED);
+            for (int position = BUCKET_HEADER_SIZE; position < end; position += bucket.getShort(position + E_SIZE)) {
+                int descriptorId = bucket.getInt(position + E_ID);
+                if (descriptorId != DELETED) {
+                    result.add(new DirectoryEntry(new String(bucket.array(), position + ENTRY_HEADER_SIZE,
+                            bucket.getShort(position + E_NAME_LENGTH), StandardCharsets.UTF_8), descriptorId));
+                }
+            }
+        });
+        result.sort(Comparator.comparing(DirectoryEntry::name));
+        return result;
+    }
+
+    // Passes every bucket once, a bucket with a lower depth than the table is behind several slots
+    private void forEachBucket(Descriptor directory, Consumer<ByteBuffer> action) {
+        Scratch buffers = scratch.get();
+        readHeader(directory, buffers);
+        int slots = 1 << buffers.header.getInt(H_DEPTH);
+        ByteBuffer table = ByteBuffer.allocate(slots * SLOT_SIZE);
+        blockManager.read(directory, buffers.header.getInt(H_TABLE), table);
+        ByteBuffer bucket = ByteBuffer.allocate(BUCKET_SIZE);
+        BitSet visited = new BitSet();
+        for (int i = 0; i < slots; i++) {
+            int bucketOffset = table.getInt(i * SLOT_SIZE);
+            if (!visited.get(bucketOffset / BUCKET_SIZE)) {
+                visited.set(bucketOffset / BUCKET_SIZE);
+                readBucket(directory, bucketOffset, bucket);
+                action.accept(bucket);
+            }
+        }
+    }
+
+    // Moves the entries of the bucket whose next hash bit is set into a new bucket at the end of the directory
+    // and points half of the slots of the old bucket at it. Leaves the header of the directory in the buffers
+    private boolean split(Descriptor directory, int bucketOffset, int hash, Scratch buffers) {
+        ByteBuffer bucket = buffers.bucket;
+        int localDepth = bucket.getInt(B_DEPTH);
+        int depth = buffers.header.getInt(H_DEPTH);
+        if (localDepth == depth) {
+            // Only names whose hashes are equal in every bit get here, the table can't tell them apart
+            if (depth == Settings.DIR_MAX_DEPTH || !doubleTable(directory, buffers)) {
+                return false;
+            }
+            depth++;
+        }
+        int end = buffers.header.getInt(H_END);
+        if (!blockManager.resize(directory, end + BUCKET_SIZE)) {
+            return false;
+        }
+        int bit = 1 << localDepth;
+        byte[] bytes = bucket.array();
+        ByteBuffer high = buffers.split;
+        Arrays.fill(high.array(), (byte) 0);
+        int used = BUCKET_HEADER_SIZE + bucket.getShort(B_USED);
+        int lowEnd = BUCKET_HEADER_SIZE;
+        int highEnd = BUCKET_HEADER_SIZE;
+        int lowCount = 0;
+        int highCount = 0;
+        // Deleted entries and slack are left behind, both halves come out compacted
+        for (int position = BUCKET_HEADER_SIZE; position < used; ) {
+            int entrySize = bucket.getShort(position + E_SIZE);
+            int liveSize = ENTRY_HEADER_SIZE + bucket.getShort(position + E_NAME_LENGTH);
+            if (bucket.getInt(position + E_ID) == DELETED) {
+                position += entrySize;
+                continue;
+            }
+            if ((bucket.getInt(position + E_HASH) & bit) != 0) {
+                System.arraycopy(bytes, position, high.array(), highEnd, liveSize);
+                high.putShort(highEnd + E_SIZE, (short) liveSize);
+                highEnd += liveSize;
+                highCount++;
+            } else {
+                System.arraycopy(bytes, position, bytes, lowEnd, liveSize);
+                bucket.putShort(lowEnd + E_SIZE, (short) liveSize);
+                lowEnd += liveSize;
+                lowCount++;
+            }
+            position += entrySize;
+        }
+        Arrays.fill(bytes, lowEnd, used, (byte) 0);
+        bucket.putInt(B_DEPTH, localDepth + 1).putShort(B_COUNT, (short) lowCount)
+                .putShort(B_USED, (short) (lowEnd - BUCKET_HEADER_SIZE)).putShort(B_DEAD, (short) 0);
+        high.putInt(B_DEPTH, localDepth + 1).putShort(B_COUNT, (short) highCount)
+                .putShort(B_USED, (short) (highEnd - BUCKET_HEADER_SIZE)).putShort(B_DEAD, (short) 0);
+        writeBucket(directory, bucketOffset, bucket);
+        writeBucket(directory, end, high);
+
+        int table = buffers.header.getInt(H_TABLE);
+        for (int i = (hash & (bit - 1)) | bit; i < 1 << depth; i += bit << 1) {
+            writeSlot(directory, table + i * SLOT_SIZE, end, buffers);
+        }
+        buffers.header.putInt(H_END, end + BUCKET_SIZE);
+        writeHeader(directory, buffers);
+        return true;
+    }
+
+    // Appends a copy of the table to itself. A table outgrowing its region moves to the end of the directory
+    // with room for one more doubling and the old region is given back
+    private boolean doubleTable(Descriptor directory, Scratch buffers) {
+        ByteBuffer header = buffers.header;
+        int table = header.getInt(H_TABLE);
+        int capacity = header.getInt(H_TABLE_CAPACITY);
+        int size = SLOT_SIZE << header.getInt(H_DEPTH);
+        byte[] slots = new byte[size];
+        blockManager.read(directory, table, ByteBuffer.wrap(slots));
+        if (2 * size <= capacity) {
+            blockManager.write(directory, table + size, ByteBuffer.wrap(slots));
+        } else {
+            int end = header.getInt(H_END);
+            int newCapacity = Math.max(4 * size, BUCKET_SIZE);
+            if (!blockManager.resize(directory, end + newCapacity)) {
+                return false;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(2 * size).put(slots).put(slots).flip();
+            blockManager.write(directory, end, copy);
+            if (table >= BUCKET_SIZE) {
+                blockManager.punchHole(directory, table, capacity);
+            }
+            header.putInt(H_TABLE, end).putInt(H_TABLE_CAPACITY, newCapacity).putInt(H_END, end + newCapacity);
+        }
+        header.putInt(H_DEPTH, header.getInt(H_DEPTH) + 1);
+        writeHeader(directory, buffers);
+        return true;
+    }
+
+    // Spreads names that differ only in their last characters over the low bits the table uses
+    private static int hash(String name) {
+        int hash = name.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    // Reads the header and returns the offset of the bucket the hash belongs to
+    private int locate(Descriptor directory, int hash, Scratch buffers) {
+        readHeader(directory, buffers);
+        int index = hash & ((1 << buffers.header.getInt(H_DEPTH)) - 1);
+        return readSlot(directory, buffers.header.getInt(H_TABLE) + index * SLOT_SIZE, buffers);
+    }
+
+    // Returns the position of the entry in the bucket, or -1
+    private static int findInBucket(ByteBuffer bucket, String name, int hash) {
+        int end = BUCKET_HEADER_SIZE + bucket.getShort(B_USED);
+        for (int position = BUCKET_HEADER_SIZE; position < end; position += bucket.getShort(position + E_SIZE)) {
+            if (bucket.getInt(position + E_HASH) == hash && bucket.getInt(position + E_ID) != DELETED
+                    && nameEquals(name, bucket.array(), position + ENTRY_HEADER_SIZE, bucket.getShort(position + E_NAME_LENGTH))) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    // First deleted entry of at least size bytes, or -1
+    private static int findDeleted(ByteBuffer bucket, int size) {
+        if (bucket.getShort(B_DEAD) < size) {
+            return -1;
+        }
+        int end = BUCKET_HEADER_SIZE + bucket.getShort(B_USED);
+        for (int position = BUCKET_HEADER_SIZE; position < end; position += bucket.getShort(position + E_SIZE)) {
+            if (bucket.getInt(position + E_ID) == DELETED && bucket.getShort(position + E_SIZE) >= size) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    // Moves the live entries of the bucket together, dropping deleted entries and the slack of reused ones
+    private static void compact(ByteBuffer bucket) {
+        byte[] bytes = bucket.array();
+        int end = BUCKET_HEADER_SIZE + bucket.getShort(B_USED);
+        int compactedEnd = BUCKET_HEADER_SIZE;
+        for (int position = BUCKET_HEADER_SIZE; position < end; ) {
+            int entrySize = bucket.getShort(position + E_SIZE);
+            if (bucket.getInt(position + E_ID) != DELETED) {
+                int liveSize = ENTRY_HEADER_SIZE + bucket.getShort(position + E_NAME_LENGTH);
+                System.arraycopy(bytes, position, bytes, compactedEnd, liveSize);
+                bucket.putShort(compactedEnd + E_SIZE, (short) liveSize);
+                compactedEnd += liveSize;
+            }
+            position += entrySize;
+        }
+        Arrays.fill(bytes, compactedEnd, end, (byte) 0);
+        bucket.putShort(B_USED, (short) (compactedEnd - BUCKET_HEADER_SIZE)).putShort(B_DEAD, (short) 0);
+    }
+
+    private void readHeader(Descriptor directory, Scratch buffers) {
+        buffers.header.clear();
+        blockManager.read(directory, 0, buffers.header);
+    }
+
+    private void writeHeader(Descriptor directory, Scratch buffers) {
+        buffers.header.clear();
+        blockManager.write(directory, 0, buffers.header);
+    }
+
+    private int readSlot(Descriptor directory, int position, Scratch buffers) {
+        buffers.slot.clear();
+        blockManager.read(directory, position, buffers.slot);
+        return buffers.slot.getInt(0);
+    }
+
+    private void writeSlot(Descriptor directory, int position, int value, Scratch buffers) {
+        buffers.slot.clear();
+        buffers.slot.putInt(0, value);
+        blockManager.write(directory, position, buffers.slot);
+    }
+
+    private void readBucket(Descriptor directory, int bucketOffset, ByteBuffer bucket) {
+        bucket.clear();
+        blockManager.read(directory, bucketOffset, bucket);
+    }
+
+    private void writeBucket(Descriptor directory, int bucketOffset, ByteBuffer bucket) {
+        bucket.clear();
+        blockManager.write(directory, bucketOffset, bucket);
+    }
+
+    // Compares the encoded name at offset with name without encoding it, unless it has non-ASCII characters
+    private static boolean nameEquals(String name, byte[] bytes, int offset, int nameLength) {
+        if (name.length() > nameLength) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80) {
+                byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+                return Arrays.equals(bytes, offset, offset + nameLength, encoded, 0, encoded.length);
+            }
+            if (bytes[offset + i] != c) {
+                return false;
+            }
+        }
+        return name.length() == nameLength;
+    }
+}
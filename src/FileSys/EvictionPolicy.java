@@ -0,0 +1,24 @@
+package FileSys;
+
+import java.util.function.IntPredicate;
+
+// Decides which buffer cache frame is reused when the cache is full
+public interface EvictionPolicy {
+    void inserted(int frame, int blockId);
+
+    void accessed(int frame);
+
+    void removed(int frame);
+
+    // Returns a frame accepted by evictable (not pinned), or -1 if there is none
+    int victim(IntPredicate evictable);
+
+    static EvictionPolicy create(String name, int frames) {
+        return switch (name.toLowerCase()) {
+            case "lru" -> new LruPolicy(frames);
+            case "clock" -> new ClockPolicy(frames);
+            case "2q" -> new TwoQueuePolicy(frames);
+            default -> throw new IllegalArgumentException("Unknown eviction policy: " + name);
+        };
+    }
+}
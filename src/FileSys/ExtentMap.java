@@ -0,0 +1,202 @@
+package FileSys;
+
+import java.util.Arrays;
+
+// Block map of a file as runs of consecutive blocks: extent i covers logical blocks
+// [offsets[i], offsets[i] + lengths[i]) stored in physical blocks [starts[i], starts[i] + lengths[i]).
+// A run starting at HOLE has no blocks behind it and reads as zeroes
+public class ExtentMap {
+    public static final int HOLE = -1;
+    private static final int[] EMPTY = new int[0];
+
+    // Arrays are only allocated once the first run is appended, most descriptors of a large table are empty
+    private int[] starts = EMPTY;
+    private int[] lengths = EMPTY;
+    private int[] offsets = EMPTY;
+    private int count = 0;
+    private int size = 0;
+    private int allocated = 0;
+
+    // Number of blocks, holes included
+    public int size() {
+        return size;
+    }
+
+    // Number of blocks that are not holes
+    public int allocatedCount() {
+        return allocated;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int extentCount() {
+        return count;
+    }
+
+    public int extentStart(int extent) {
+        return starts[extent];
+    }
+
+    public int extentLength(int extent) {
+        return lengths[extent];
+    }
+
+    public int extentOffset(int extent) {
+        return offsets[extent];
+    }
+
+    public boolean isHole(int extent) {
+        return starts[extent] == HOLE;
+    }
+
+    // Extent holding the logical block, found by binary search over the extent offsets
+    public int findExtent(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Block " + index + " out of bounds for length " + size);
+        }
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (offsets[middle] <= index) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    // Physical block holding the logical block, HOLE if there is none
+    public int get(int index) {
+        return physical(findExtent(index), index);
+    }
+
+    private int physical(int extent, int index) {
+        return starts[extent] == HOLE ? HOLE : starts[extent] + index - offsets[extent];
+    }
+
+    // Last physical block of the file, HOLE if it has none
+    public int getLast() {
+        for (int extent = count - 1; extent >= 0; extent--) {
+            if (starts[extent] != HOLE) {
+                return starts[extent] + lengths[extent] - 1;
+            }
+        }
+        return HOLE;
+    }
+
+    // Appends a run of blocks, merging it into the last extent when it continues it
+    public void append(int start, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (count > 0 && (start == HOLE ? starts[count - 1] == HOLE
+                : starts[count - 1] != HOLE && starts[count - 1] + lengths[count - 1] == start)) {
+            lengths[count - 1] += length;
+        } else {
+            if (count == starts.length) {
+                int grown = Math.max(count * 2, 2);
+                starts = Arrays.copyOf(starts, grown);
+                lengths = Arrays.copyOf(lengths, grown);
+                offsets = Arrays.copyOf(offsets, grown);
+            }
+            starts[count] = start;
+            lengths[count] = length;
+            offsets[count] = size;
+            count++;
+        }
+        size += length;
+        if (start != HOLE) {
+            allocated += length;
+        }
+    }
+
+    // Maps the logical blocks [index, index + length) to the run at start (or a hole), splitting the extents
+    // around it. The range may reach past the end, the map then grows
+    public void replace(int index, int length, int start) {
+        int end = index + length;
+        ExtentMap result = new ExtentMap();
+        boolean inserted = false;
+        for (int extent = 0; extent < count; extent++) {
+            int extentEnd = offsets[extent] + lengths[extent];
+            if (offsets[extent] < index) {
+                result.append(starts[extent], Math.min(extentEnd, index) - offsets[extent]);
+            }
+            if (!inserted && extentEnd > index) {
+                result.append(start, length);
+                inserted = true;
+            }
+            if (extentEnd > end) {
+                int from = Math.max(offsets[extent], end);
+                result.append(physical(extent, from), extentEnd - from);
+            }
+        }
+        if (!inserted) {
+            result.append(HOLE, index - result.size);
+            result.append(start, length);
+        }
+        starts = result.starts;
+        lengths = result.lengths;
+        offsets = result.offsets;
+        count = result.count;
+        size = result.size;
+        allocated = result.allocated;
+    }
+
+    // Drops blocks from the end until newSize are left
+    public void truncate(int newSize) {
+        while (count > 0 && offsets[count - 1] >= newSize) {
+            count--;
+            if (starts[count] != HOLE) {
+                allocated -= lengths[count];
+            }
+        }
+        if (count > 0 && offsets[count - 1] + lengths[count - 1] > newSize) {
+            int dropped = offsets[count - 1] + lengths[count - 1] - newSize;
+            lengths[count - 1] -= dropped;
+            if (starts[count - 1] != HOLE) {
+                allocated -= dropped;
+            }
+        }
+        size = Math.min(size, newSize);
+    }
+
+    public ExtentMap copy() {
+        ExtentMap copy = new ExtentMap();
+        copy.starts = Arrays.copyOf(starts, count);
+        copy.lengths = Arrays.copyOf(lengths, count);
+        copy.offsets = Arrays.copyOf(offsets, count);
+        copy.count = count;
+        copy.size = size;
+        copy.allocated = allocated;
+        return copy;
+    }
+
+    public void clear() {
+        count = 0;
+        size = 0;
+        allocated = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            if (starts[i] == HOLE) {
+                result.append("hole x").append(lengths[i]);
+                continue;
+            }
+            result.append(starts[i]);
+            if (lengths[i] > 1) {
+                result.append('-').append(starts[i] + lengths[i] - 1);
+            }
+        }
+        return result.append(']').toString();
+    }
+}
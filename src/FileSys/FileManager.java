@@ -1,462 +1,1616 @@
 package FileSys;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
 
+// Safe to share between threads. Every descriptor is guarded by a read-write lock it shares with other ids, see
+// InodeTable. Operations that need several take them together with lockAll, in ascending order of stripe, and
+// check what they looked up once they hold them. A cursor read or write locks its open file before the descriptor
 public class FileManager {
     private final Descriptor rootDescriptor;
     private final BlockManager blockManager;
-    private final Descriptor[] descriptors = new Descriptor[Settings.MAX_DESCRIPTORS];
-    private final Descriptor[] openFiles = new Descriptor[Settings.MAX_DESCRIPTORS];
-    private final List<Descriptor> symlinks = new ArrayList<>();
-    private Descriptor cwd;
+    private final InodeTable inodes;
+    // Guards loading, creating and removing descriptors
+    private final Object descriptorLock = new Object();
+    // Guards the fds and the open counts of the inodes, taken after the lock of the descriptor
+    private final OpenFile[] openFiles = new OpenFile[Settings.MAX_OPEN_FILES];
+    private final IdAllocator freeFds = new IdAllocator(Settings.MAX_OPEN_FILES);
+    // Files without links that are still open, guarded by openFiles
+    private int orphans = 0;
+    private final DentryCache dentryCache = new DentryCache(Settings.DENTRY_CACHE_SIZE);
+    // Present only for image-backed volumes, descriptors are then loaded from it on first use
+    private final VolumeImage image;
+    private final DescriptorTable descriptorTable;
+    // Snapshots taken on this mount by name, also guards taking and deleting them
+    private final Map<String, Snapshot> snapshots = new LinkedHashMap<>();
+    // Present only for read-only views of a snapshot
+    private final Snapshot snapshot;
+    private volatile Descriptor cwd;
+    // Cached directory paths are only used while they carry the current generation
+    private final AtomicLong pathGeneration = new AtomicLong();
+    private final Object renameLock = new Object();
+    private final LatencyHistogram createTimer;
+    private final LatencyHistogram openTimer;
+    private final LatencyHistogram readTimer;
+    private final LatencyHistogram writeTimer;
+    private final LatencyHistogram truncateTimer;
+    private final LatencyHistogram resolveTimer;
+    private final LatencyHistogram unlinkTimer;
+    private final LatencyHistogram mkdirTimer;
+    private final LatencyHistogram renameTimer;
+    private final LongAdder bytesRead;
+    private final LongAdder bytesWritten;
 
     public FileManager() {
-        this.blockManager = new BlockManager();
-        this.descriptors[0] = new Descriptor(0, null, 1);
-        this.rootDescriptor = descriptors[0];
+        this(VolumeConfig.defaults());
+    }
+
+    // In-memory volume with the given geometry
+    public FileManager(VolumeConfig config) {
+        this(null, config, true);
+    }
+
+    private FileManager(VolumeImage image, VolumeConfig config, boolean format) {
+        this(image, image == null ? new BlockManager(config) : new BlockManager(image),
+                new InodeTable(config.maxDescriptors(), image == null ? null : image.getDescriptorTable()), null, format);
+    }
+
+    // Read-only view of a snapshot, it reads the shared blocks through the device of the volume
+    private FileManager(FileManager volume, Snapshot snapshot) {
+        this(null, new BlockManager(volume.blockManager.getDevice(), volume.blockManager.getFreeSpaceMap()),
+                snapshot.getInodes(), snapshot, false);
+    }
+
+    private FileManager(VolumeImage image, BlockManager blockManager, InodeTable inodes, Snapshot snapshot, boolean format) {
+        this.image = image;
+        this.blockManager = blockManager;
+        this.inodes = inodes;
+        this.descriptorTable = inodes.getStore();
+        this.snapshot = snapshot;
+        Metrics metrics = blockManager.getMetrics();
+        this.createTimer = metrics.timer("create");
+        this.openTimer = metrics.timer("open");
+        this.readTimer = metrics.timer("read");
+        this.writeTimer = metrics.timer("write");
+        this.truncateTimer = metrics.timer("truncate");
+        this.resolveTimer = metrics.timer("resolvePath");
+        this.unlinkTimer = metrics.timer("unlink");
+        this.mkdirTimer = metrics.timer("mkdir");
+        this.renameTimer = metrics.timer("rename");
+        this.bytesRead = metrics.counter("bytes.read");
+        this.bytesWritten = metrics.counter("bytes.written");
+        blockManager.beginTransaction();
+        if (format) {
+            createDescriptor(0, -1, InodeTable.DIRECTORY);
+        }
+        this.rootDescriptor = getDescriptor(0);
         this.cwd = rootDescriptor;
-        truncate("/", Settings.DIR_DEFAULT_SIZE);
+        if (format) {
+            blockManager.formatDirectory(rootDescriptor);
+        }
+        blockManager.commitTransaction();
+        if (image != null && !format && image.hasOrphans()) {
+            releaseOrphans();
+        }
+        if (image != null && image.hasSnapshots()) {
+            reclaimSnapshotBlocks();
+        }
+        // Every absolute path starts at the root header, so it is kept in memory
+        if (snapshot == null && blockManager.getDevice() instanceof BufferCache cache) {
+            cache.pin(rootDescriptor.getBlockMap().get(0));
+        }
+    }
+
+    public static FileManager format(String imagePath) throws IOException {
+        return format(imagePath, VolumeConfig.defaults());
+    }
+
+    public static FileManager format(String imagePath, VolumeConfig config) throws IOException {
+        return new FileManager(VolumeImage.format(Path.of(imagePath), config), config, true);
+    }
+
+    // The geometry is read from the image
+    public static FileManager mount(String imagePath) throws IOException {
+        VolumeImage image = VolumeImage.mount(Path.of(imagePath));
+        return new FileManager(image, image.getConfig(), false);
+    }
+
+    // Operations are durable once the journal group holding them is written, sync forces that for everything so far
+    public void sync() throws IOException {
+        if (image != null) {
+            blockManager.getJournal().flush();
+            blockManager.getDevice().flush();
+        }
+    }
+
+    // Snapshots are deleted with the mount they were taken on, a view of a snapshot only lets go of it
+    public void close() throws IOException {
+        if (snapshot != null) {
+            snapshot.unmount();
+            return;
+        }
+        synchronized (snapshots) {
+            for (Snapshot taken : snapshots.values()) {
+                taken.delete(true);
+                dropSnapshot(taken);
+            }
+            snapshots.clear();
+        }
+        if (image != null) {
+            blockManager.getJournal().close();
+            if (image.hasSnapshots()) {
+                image.setSnapshots(false);
+            }
+            synchronized (openFiles) {
+                if (orphans == 0 && image.hasOrphans()) {
+                    image.setOrphans(false);
+                }
+            }
+            blockManager.getDevice().close();
+        }
+    }
+
+    // Changes are refused by views of a snapshot
+    private boolean isReadOnly() {
+        if (snapshot == null) {
+            return false;
+        }
+        Log.warn("Snapshot '" + snapshot.getName() + "' is read-only");
+        return true;
+    }
+
+    // Freezes the current state of the volume under a name. Only the descriptors and block maps are copied, the
+    // blocks are shared until the volume changes them, so the cost doesn't depend on the amount of data
+    public boolean createSnapshot(String name) {
+        if (isReadOnly()) {
+            return false;
+        }
+        Snapshot taken;
+        synchronized (snapshots) {
+            if (snapshots.containsKey(name)) {
+                Log.warn("Snapshot '" + name + "' already exists");
+                return false;
+            }
+            // Set before any block is shared, blocks a crash leaves referenced by nothing are then reclaimed
+            if (image != null && !image.hasSnapshots()) {
+                image.setSnapshots(true);
+            }
+            Snapshot[] frozen = new Snapshot[1];
+            blockManager.freeze(() -> {
+                synchronized (descriptorLock) {
+                    // Block maps of an image are read on first use, the copy needs all of them
+                    for (int id = 0; id < inodes.getCapacity(); id++) {
+                        if (inodes.isUsed(id)) {
+                            getDescriptor(id);
+                        }
+                    }
+                    InodeTable copy = inodes.snapshot();
+                    for (int id = 0; id < copy.getCapacity(); id++) {
+                        if (copy.isUsed(id) && copy.findBlockMap(id) != null) {
+                            blockManager.share(copy.findBlockMap(id));
+                        }
+                    }
+                    frozen[0] = new Snapshot(name, copy, System.currentTimeMillis());
+                }
+            });
+            taken = frozen[0];
+            snapshots.put(name, taken);
+        }
+        Log.info(() -> "Snapshot '" + name + "' created");
+        return true;
+    }
+
+    // Blocks only the snapshot still references are freed
+    public boolean deleteSnapshot(String name) {
+        if (isReadOnly()) {
+            return false;
+        }
+        synchronized (snapshots) {
+            Snapshot taken = snapshots.get(name);
+            if (taken == null) {
+                Log.warn("Could not find snapshot '" + name + "'");
+                return false;
+            }
+            if (!taken.delete(false)) {
+                Log.warn("Snapshot '" + name + "' is mounted");
+                return false;
+            }
+            snapshots.remove(name);
+            int freeBefore = blockManager.getFreeBlocksAmount();
+            dropSnapshot(taken);
+            if (snapshots.isEmpty() && image != null) {
+                // The frees have to be on the image before the flag that would reclaim them is cleared
+                blockManager.getJournal().flush();
+                image.setSnapshots(false);
+            }
+            int freed = blockManager.getFreeBlocksAmount() - freeBefore;
+            Log.info(() -> "Snapshot '" + name + "' deleted, freed " + freed + " blocks");
+            return true;
+        }
+    }
+
+    private void dropSnapshot(Snapshot taken) {
+        InodeTable frozen = taken.getInodes();
+        for (int id = 0; id < frozen.getCapacity(); id++) {
+            if (frozen.isUsed(id) && frozen.findBlockMap(id) != null) {
+                blockManager.dropReferences(frozen.findBlockMap(id));
+            }
+        }
+    }
+
+    // Read-only file manager over a snapshot, the snapshot can't be deleted until it is closed. Returns null if
+    // there is no such snapshot
+    public FileManager openSnapshot(String name) {
+        if (isReadOnly()) {
+            return null;
+        }
+        synchronized (snapshots) {
+            Snapshot taken = snapshots.get(name);
+            if (taken == null || !taken.mount()) {
+                Log.warn("Could not find snapshot '" + name + "'");
+                return null;
+            }
+            return new FileManager(this, taken);
+        }
+    }
+
+    // Names of the snapshots, oldest first
+    public List<String> listSnapshots() {
+        synchronized (snapshots) {
+            return new ArrayList<>(snapshots.keySet());
+        }
+    }
+
+    // Snapshots with the time they were taken, oldest first
+    public List<SnapshotInfo> getSnapshots() {
+        synchronized (snapshots) {
+            List<SnapshotInfo> result = new ArrayList<>(snapshots.size());
+            for (Snapshot taken : snapshots.values()) {
+                result.add(new SnapshotInfo(taken.getName(), taken.getCreatedMillis()));
+            }
+            return result;
+        }
+    }
+
+    public int getSharedBlocks() {
+        return blockManager.getRefCounts().getSharedBlocks();
+    }
+
+    // A crash loses the snapshots of the mount but not the references they held, blocks that no descriptor
+    // reaches anymore are freed
+    private void reclaimSnapshotBlocks() {
+        BitSet reachable = new BitSet(blockManager.getFreeSpaceMap().size());
+        for (int id = 0; id < inodes.getCapacity(); id++) {
+            if (inodes.isUsed(id)) {
+                getDescriptor(id);
+                markBlocks(reachable, inodes.findBlockMap(id));
+                markBlocks(reachable, inodes.findMapChain(id));
+            }
+        }
+        int reclaimed = blockManager.reclaim(reachable);
+        blockManager.getJournal().flush();
+        image.setSnapshots(false);
+        Log.info(() -> "Reclaimed " + reclaimed + " blocks of snapshots of the last mount");
+    }
+
+    private static void markBlocks(BitSet blocks, ExtentMap map) {
+        if (map == null) {
+            return;
+        }
+        for (int extent = 0; extent < map.extentCount(); extent++) {
+            if (!map.isHole(extent)) {
+                blocks.set(map.extentStart(extent), map.extentStart(extent) + map.extentLength(extent));
+            }
+        }
+    }
+
+    // Files unlinked while they were open lose their data with the last close, after a crash nothing holds
+    // them open anymore. Only a volume that had such files when it went down is searched
+    private void releaseOrphans() {
+        int released = 0;
+        blockManager.beginTransaction();
+        for (int id = 1; id < inodes.getCapacity(); id++) {
+            if (inodes.isUsed(id) && inodes.getLinks(id) == 0) {
+                Descriptor orphan = getDescriptor(id);
+                blockManager.freeBlocks(orphan, orphan.getBlockMap().size());
+                removeDescriptor(id);
+                released++;
+            }
+        }
+        blockManager.commitTransaction();
+        blockManager.getJournal().flush();
+        image.setOrphans(false);
+        if (released > 0) {
+            int count = released;
+            Log.info(() -> "Released " + count + " unlinked files that were open");
+        }
+    }
+
+    // A new view of the slot. An id looked up without locks may be freed by then, its view is seen as removed
+    private Descriptor getDescriptor(int id) {
+        Descriptor descriptor = new Descriptor(inodes, id);
+        if (descriptorTable == null || inodes.isLoaded(id)) {
+            return descriptor;
+        }
+        // Slots of an image are read with their page of the table, their block maps on first use
+        synchronized (descriptorLock) {
+            if (!inodes.isLoaded(id) && !descriptor.isRemoved()) {
+                blockManager.loadBlockMap(descriptor, descriptorTable.getMapHead(id), descriptorTable.getMapLength(id));
+                inodes.setLoaded(id, true);
+            }
+            return descriptor;
+        }
+    }
+
+    private Descriptor createDescriptor(int id, int parentId, int fileType) {
+        inodes.allocate(id, parentId, fileType);
+        return new Descriptor(inodes, id);
+    }
+
+    // Takes the first free slot, returns null when the table is full
+    private Descriptor allocateDescriptor(Descriptor parent, int fileType) {
+        synchronized (descriptorLock) {
+            int id = inodes.findFree();
+            return id == -1 ? null : createDescriptor(id, parent.getId(), fileType);
+        }
+    }
+
+    private void removeDescriptor(int id) {
+        synchronized (descriptorLock) {
+            inodes.free(id);
+        }
+    }
+
+    public DentryCache getDentryCache() {
+        return dentryCache;
+    }
+
+    // Null for in-memory volumes, they have no buffer cache
+    public BufferCache getBufferCache() {
+        return blockManager.getDevice() instanceof BufferCache cache ? cache : null;
     }
 
+    public Metrics getMetrics() {
+        return blockManager.getMetrics();
+    }
+
+    public MetricsSnapshot metricsSnapshot() {
+        return blockManager.getMetrics().snapshot();
+    }
+
+    // Entries are added and removed under the directory write lock, so filling the cache under the read lock
+    // can't store a result that is already stale
+    private int lookup(Descriptor directory, String name) {
+        // The root has no "." and ".." entries, it is its own parent
+        if (directory.getId() == 0 && (name.equals(".") || name.equals(".."))) {
+            return 0;
+        }
+        int descriptorId = dentryCache.get(directory.getId(), name);
+        if (descriptorId == DentryCache.MISS) {
+            Lock lock = directory.getLock().readLock();
+            lock.lock();
+            try {
+                if (directory.isRemoved()) {
+                    return -1;
+                }
+                descriptorId = blockManager.findDescriptorId(directory, name);
+                dentryCache.put(directory.getId(), name, descriptorId);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return descriptorId;
+    }
+
+    // Path of the working directory
     public String getPathString() throws WrongTypeException, PathResolutionException {
-        if (cwd == rootDescriptor) {
-            return "/";
+        return pathOf(cwd);
+    }
+
+    // Walks up to the root or to the first directory whose cached path is current, then caches the path of
+    // every directory on the way back down. Repeated calls cost one lookup, a miss costs O(depth)
+    private String pathOf(Descriptor directory) throws WrongTypeException, PathResolutionException {
+        long generation = pathGeneration.get();
+        List<Descriptor> chain = new ArrayList<>();
+        Descriptor current = directory;
+        String path = "/";
+        while (current.getId() != 0) {
+            if (current.isRemoved()) {
+                throw new PathResolutionException("Directory was removed");
+            }
+            String cached = inodes.getPath(current.getId(), generation);
+            if (cached != null) {
+                path = cached;
+                break;
+            }
+            chain.add(current);
+            current = getDescriptor(current.getParentId());
+        }
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            Descriptor child = chain.get(i);
+            path = (path.length() == 1 ? "/" : path + "/") + nameOf(child, current);
+            inodes.setPath(child.getId(), path, generation);
+            current = child;
+        }
+        return path;
+    }
+
+    // Names are recorded when directories are created, directories of a mounted image are looked up
+    // in their parent once
+    private String nameOf(Descriptor directory, Descriptor parent) throws WrongTypeException, PathResolutionException {
+        String name = inodes.getName(directory.getId());
+        if (name != null) {
+            return name;
+        }
+        Lock lock = parent.getLock().readLock();
+        lock.lock();
+        try {
+            name = blockManager.getDirName(directory, parent);
+        } finally {
+            lock.unlock();
+        }
+        inodes.setName(directory.getId(), name);
+        return name;
+    }
+
+    // Absolute path of what the path leads to, without ".", ".." or symbolic links
+    public String realpath(String path) throws PathResolutionException {
+        PathTarget result = resolvePath(path, true);
+        String name = result.name();
+        Descriptor parent = result.parent();
+        int descriptorId = lookup(parent, name);
+        if (descriptorId == -1) {
+            throw new PathResolutionException("Could not find '" + name + "'");
+        }
+        Descriptor target = getDescriptor(descriptorId);
+        try {
+            if (target.isDirectory()) {
+                return pathOf(target);
+            }
+            String parentPath = pathOf(parent);
+            return (parentPath.length() == 1 ? "/" : parentPath + "/") + name;
+        } catch (WrongTypeException e) {
+            throw new PathResolutionException(e.getMessage());
         }
-        StringBuilder result = new StringBuilder();
-        String buffer;
-        Descriptor currentDescriptor = this.cwd;
-        do {
-            buffer = blockManager.getDirName(currentDescriptor);
-            currentDescriptor = currentDescriptor.getParent();
-            result.insert(0, "/" + buffer);
-        } while (currentDescriptor.getId() != 0);
-        return result.toString();
     }
 
-    public void createFile(String path) {
+    public boolean createFile(String path) {
+        if (isReadOnly()) {
+            return false;
+        }
+        long started = createTimer.start();
         try {
             PathTarget result = resolvePath(path);
             String name = result.name();
             Descriptor parent = result.parent();
 
-            for (int i = 0; i < Settings.MAX_DESCRIPTORS; i++) {
-                if (descriptors[i] == null) {
-                    descriptors[i] = new Descriptor(i, parent, 0);
-                    descriptors[i].increaseLinksAmount();
-                    blockManager.addEntry(parent, name, i);
-                    System.out.println("File '" + name + "'" + " created");
-                    return;
+            Lock lock = parent.getLock().writeLock();
+            lock.lock();
+            blockManager.beginTransaction();
+            try {
+                if (lookup(parent, name) != -1) {
+                    createTimer.recordError();
+                    Log.warn("File '" + name + "' already exists");
+                    return false;
                 }
+                Descriptor file = allocateDescriptor(parent, InodeTable.FILE);
+                if (file != null) {
+                    if (blockManager.addEntry(parent, name, file.getId())) {
+                        dentryCache.put(parent.getId(), name, file.getId());
+                        file.increaseLinksAmount();
+                        Log.info(() -> "File '" + name + "'" + " created");
+                        return true;
+                    }
+                    removeDescriptor(file.getId());
+                }
+                createTimer.recordError();
+                Log.warn("Failed to create file '" + name + "'");
+                return false;
+            } finally {
+                blockManager.commitTransaction();
+                lock.unlock();
             }
-            System.out.println("Failed to create file '" + name + "'");
         } catch (PathResolutionException e) {
-            System.out.println(e.getMessage());
+            createTimer.recordError();
+            Log.warn(e.getMessage());
+            return false;
+        } finally {
+            createTimer.record(started);
+        }
+    }
+
+    // Entries of the working directory with the type of each file
+    public List<ListEntry> ls() {
+        Descriptor directory = cwd;
+        // Entries can't be removed while the directory is read locked
+        directory.getLock().readLock().lock();
+        try {
+            List<DirectoryEntry> entries = blockManager.getEntries(directory);
+            List<ListEntry> result = new ArrayList<>(entries.size());
+            for (DirectoryEntry entry : entries) {
+                result.add(new ListEntry(entry.name(), entry.id(), getDescriptor(entry.id()).getFileType()));
+            }
+            return result;
+        } finally {
+            directory.getLock().readLock().unlock();
         }
     }
 
-    public void ls() {
-        List<String[]> result = blockManager.getEntries(cwd);
-        for (String[] entry : result) {
-            System.out.println("File name: " + entry[0] + " | Descriptor id: " + entry[1] + " | " + descriptors[Integer.parseInt(entry[1])].getFileType());
+    // Entries of the working directory, without their types
+    public List<DirectoryEntry> list() {
+        Descriptor directory = cwd;
+        directory.getLock().readLock().lock();
+        try {
+            return blockManager.getEntries(directory);
+        } finally {
+            directory.getLock().readLock().unlock();
         }
     }
 
-    public void link(String path, String newName) {
+    public boolean link(String path, String newName) {
+        if (isReadOnly()) {
+            return false;
+        }
         try {
             PathTarget result = resolvePath(path);
             String originalName = result.name();
             Descriptor parent = result.parent();
 
             if (originalName.equals(newName)) {
-                System.out.println("New link should have different name");
-                return;
+                Log.warn("New link should have different name");
+                return false;
             }
-            int descriptorId = blockManager.findDescriptorId(parent, originalName);
+            int descriptorId = lookup(parent, originalName);
             if (descriptorId == -1) {
-                System.out.println("Could not find " + "'" + originalName + "'");
-                return;
+                Log.warn("Could not find " + "'" + originalName + "'");
+                return false;
+            }
+            Descriptor target = getDescriptor(descriptorId);
+            if (target.isDirectory()) {
+                Log.warn("File: '" + originalName + "' is a directory");
+                return false;
             }
-            if (Objects.equals(descriptors[descriptorId].getFileType(), "directory")) {
-                System.out.println("File: '" + originalName + "' is a directory");
-                return;
+            Descriptor directory = cwd;
+            List<Lock> locks = lockAll(directory, target);
+            blockManager.beginTransaction();
+            try {
+                // The file may have been removed since it was looked up
+                if (target.isRemoved()) {
+                    Log.warn("Could not find " + "'" + originalName + "'");
+                    return false;
+                }
+                if (lookup(directory, newName) != -1) {
+                    Log.warn("File '" + newName + "' already exists");
+                    return false;
+                }
+                if (!blockManager.addEntry(directory, newName, descriptorId)) {
+                    return false;
+                }
+                dentryCache.put(directory.getId(), newName, descriptorId);
+                target.increaseLinksAmount();
+            } finally {
+                blockManager.commitTransaction();
+                unlockAll(locks);
             }
-            blockManager.addEntry(cwd, newName, descriptorId);
-            descriptors[descriptorId].increaseLinksAmount();
-            System.out.println("'" + newName + "'" + " linked to " + "'" + originalName + "'");
+            Log.info(() -> "'" + newName + "'" + " linked to " + "'" + originalName + "'");
+            return true;
         } catch (PathResolutionException e) {
-            System.out.println(e.getMessage());
+            Log.warn(e.getMessage());
+            return false;
         }
     }
 
-    public void unlink(String path) {
+    public boolean unlink(String path) {
+        if (isReadOnly()) {
+            return false;
+        }
+        long started = unlinkTimer.start();
         try {
             PathTarget result = resolvePath(path);
             String name = result.name();
             Descriptor parent = result.parent();
 
-            int descriptorId = blockManager.findDescriptorId(parent, name);
+            while (true) {
+                int descriptorId = lookup(parent, name);
+                if (descriptorId == -1) {
+                    unlinkTimer.recordError();
+                    Log.warn("Could not find " + "'" + name + "'");
+                    return false;
+                }
+                Descriptor currentFileDescriptor = getDescriptor(descriptorId);
+                List<Lock> locks = lockAll(parent, currentFileDescriptor);
+                if (lookup(parent, name) != descriptorId || currentFileDescriptor.isRemoved()) {
+                    unlockAll(locks);
+                    continue;
+                }
+                if (currentFileDescriptor.isDirectory()) {
+                    unlockAll(locks);
+                    unlinkTimer.recordError();
+                    Log.warn("File: '" + name + "' is a directory");
+                    return false;
+                }
+                blockManager.beginTransaction();
+                try {
+                    if (dropLink(currentFileDescriptor)) {
+                        Log.info(() -> "File '" + name + "' was fully removed.");
+                    } else if (currentFileDescriptor.getLinkAm() > 0) {
+                        Log.info(() -> "File '" + name + "' unlinked, but still has " + currentFileDescriptor.getLinkAm() + " links.");
+                    } else {
+                        Log.info(() -> "File '" + name + "' unlinked, its data is kept until it is closed.");
+                    }
+
+                    blockManager.deleteEntry(parent, name);
+                    dentryCache.invalidate(parent.getId(), name);
+                    return true;
+                } finally {
+                    blockManager.commitTransaction();
+                    unlockAll(locks);
+                }
+            }
+        } catch (PathResolutionException e) {
+            unlinkTimer.recordError();
+            Log.warn(e.getMessage());
+            return false;
+        } finally {
+            unlinkTimer.record(started);
+        }
+    }
+
+    // Takes one link away from a file the caller holds the write lock of, the file is released with its last
+    // link unless it is open, then the last close releases it. The slot is freed last, it may be taken by another
+    // file right after. Returns whether it was released
+    private boolean dropLink(Descriptor file) {
+        file.decreaseLinksAmount();
+        if (file.getLinkAm() > 0) {
+            return false;
+        }
+        synchronized (openFiles) {
+            if (inodes.getOpenCount(file.getId()) > 0) {
+                // Forced before the transaction that drops the last link commits
+                if (orphans++ == 0 && image != null && !image.hasOrphans()) {
+                    image.setOrphans(true);
+                }
+                return false;
+            }
+        }
+        release(file);
+        return true;
+    }
+
+    private void release(Descriptor file) {
+        blockManager.freeBlocks(file, file.getBlockMap().size());
+        removeDescriptor(file.getId());
+    }
+
+    // Moves the entry source to destination, replacing a file there or an empty directory. Only directory entries
+    // change, data blocks are never touched, and everything is one journal transaction
+    public boolean rename(String source, String destination) {
+        if (isReadOnly()) {
+            return false;
+        }
+        long started = renameTimer.start();
+        try {
+            // With one rename at a time no other operation moves a directory, the ancestor checks stay true
+            synchronized (renameLock) {
+                if (moveEntry(source, destination)) {
+                    return true;
+                }
+            }
+        } catch (PathResolutionException e) {
+            Log.warn(e.getMessage());
+        } finally {
+            renameTimer.record(started);
+        }
+        renameTimer.recordError();
+        return false;
+    }
+
+    private boolean moveEntry(String source, String destination) throws PathResolutionException {
+        PathTarget from = resolvePath(source);
+        PathTarget to = resolvePath(destination);
+        String sourceName = from.name();
+        String targetName = to.name();
+        if (isSpecialName(sourceName) || isSpecialName(targetName)) {
+            Log.warn("Can't rename '" + sourceName + "' to '" + targetName + "'");
+            return false;
+        }
+        Descriptor sourceParent = from.parent();
+        Descriptor targetParent = to.parent();
+
+        while (true) {
+            int descriptorId = lookup(sourceParent, sourceName);
             if (descriptorId == -1) {
-                System.out.println("Could not find " + "'" + name + "'");
-                return;
+                Log.warn("Could not find '" + sourceName + "'");
+                return false;
+            }
+            Descriptor moved = getDescriptor(descriptorId);
+            int replacedId = lookup(targetParent, targetName);
+            if (replacedId == descriptorId) {
+                return true;
             }
-            if (Objects.equals(descriptors[descriptorId].getFileType(), "directory")) {
-                System.out.println("File: '" + name + "' is a directory");
-                return;
+            Descriptor replaced = replacedId == -1 ? null : getDescriptor(replacedId);
+            List<Lock> locks = lockAll(sourceParent, targetParent, moved, replaced);
+            try {
+                if (sourceParent.isRemoved() || targetParent.isRemoved()) {
+                    Log.warn("Directory was removed");
+                    return false;
+                }
+                if (lookup(sourceParent, sourceName) != descriptorId || moved.isRemoved()
+                        || lookup(targetParent, targetName) != replacedId || (replaced != null && replaced.isRemoved())) {
+                    continue;
+                }
+                if (moved.isDirectory() && isAncestor(moved, targetParent)) {
+                    Log.warn("Can't move directory '" + sourceName + "' into itself");
+                    return false;
+                }
+                if (replaced != null) {
+                    if (moved.isDirectory() != replaced.isDirectory()) {
+                        Log.warn("File '" + targetName + "'" + (replaced.isDirectory() ? " is a directory" : " is not a directory"));
+                        return false;
+                    }
+                    if (replaced.isDirectory() && blockManager.countEntries(replaced) > 2) {
+                        Log.warn("Directory '" + targetName + "' is not empty");
+                        return false;
+                    }
+                }
+                blockManager.beginTransaction();
+                try {
+                    // The new entry is in place before the old one goes, a full directory fails before anything changed
+                    if (replaced != null) {
+                        blockManager.setEntryId(targetParent, targetName, descriptorId);
+                    } else if (!blockManager.addEntry(targetParent, targetName, descriptorId)) {
+                        Log.warn("Failed to rename '" + sourceName + "'");
+                        return false;
+                    }
+                    blockManager.deleteEntry(sourceParent, sourceName);
+                    dentryCache.invalidate(sourceParent.getId(), sourceName);
+                    dentryCache.put(targetParent.getId(), targetName, descriptorId);
+                    if (moved.isDirectory()) {
+                        if (!targetParent.equals(sourceParent)) {
+                            blockManager.setEntryId(moved, "..", targetParent.getId());
+                            dentryCache.invalidate(descriptorId, "..");
+                        }
+                        inodes.setName(descriptorId, targetName);
+                        // Paths of the directory and everything below it changed
+                        pathGeneration.incrementAndGet();
+                    }
+                    moved.setParentId(targetParent.getId());
+
+                    if (replaced != null) {
+                        if (replaced.isDirectory()) {
+                            replaced.decreaseLinksAmount();
+                            blockManager.freeBlocks(replaced, replaced.getBlockMap().size());
+                            removeDescriptor(replaced.getId());
+                            dentryCache.invalidateDirectory(replaced.getId());
+                        } else {
+                            dropLink(replaced);
+                        }
+                    }
+                } finally {
+                    blockManager.commitTransaction();
+                }
+                Log.info(() -> "'" + sourceName + "' renamed to '" + targetName + "'");
+                return true;
+            } finally {
+                unlockAll(locks);
             }
-            Descriptor currentFileDescriptor = descriptors[descriptorId];
-            if (currentFileDescriptor.getLinkAm() == 1) {
-                blockManager.freeBlocks(currentFileDescriptor, currentFileDescriptor.getBlockMap().size());
-                descriptors[descriptorId] = null;
-                System.out.println("File '" + name + "' was fully removed.");
-            } else {
-                System.out.println("File '" + name + "' unlinked, but still has " + (currentFileDescriptor.getLinkAm() - 1) + " links.");
+        }
+    }
+
+    private static boolean isSpecialName(String name) {
+        return name.equals("/") || name.equals(".") || name.equals("..");
+    }
+
+    // Write locks of the descriptors. Ids share locks, so each lock is taken once and all of them in ascending order
+    // of stripe, callers check what they looked up again once they hold them
+    private List<Lock> lockAll(Descriptor... descriptors) {
+        int[] stripes = new int[descriptors.length];
+        int count = 0;
+        for (Descriptor descriptor : descriptors) {
+            if (descriptor != null) {
+                stripes[count++] = inodes.getStripe(descriptor.getId());
             }
-            if (Arrays.asList(openFiles).contains(currentFileDescriptor)) {
-                openFiles[descriptorId] = null;
+        }
+        Arrays.sort(stripes, 0, count);
+        List<Lock> locks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) {
+                Lock lock = inodes.getStripeLock(stripes[i]).writeLock();
+                lock.lock();
+                locks.add(lock);
             }
+        }
+        return locks;
+    }
 
-            currentFileDescriptor.decreaseLinksAmount();
-            blockManager.deleteEntry(parent, name);
-        } catch (PathResolutionException e) {
-            System.out.println(e.getMessage());
+    private static void unlockAll(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
         }
     }
 
-    public void truncate(String path, int size) {
+    // Whether ancestor is the directory itself or one above it
+    private boolean isAncestor(Descriptor ancestor, Descriptor directory) {
+        for (int id = directory.getId(); id >= 0; id = id == 0 ? -1 : inodes.getParent(id)) {
+            if (id == ancestor.getId()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean truncate(String path, long size) {
+        if (isReadOnly()) {
+            return false;
+        }
+        long started = truncateTimer.start();
         try {
-            PathTarget result = resolvePath(path);
+            if (size < 0 || size > blockManager.getMaxFileSize()) {
+                truncateTimer.recordError();
+                Log.warn("Size " + size + " is out of range, a file holds at most " + blockManager.getMaxFileSize() + " bytes");
+                return false;
+            }
+            PathTarget result = resolvePath(path, true);
             String name = result.name();
             Descriptor parent = result.parent();
 
-            int descriptorId = 0;
-            if (!name.equals("/")) {
-                descriptorId = blockManager.findDescriptorId(parent, name);
-            }
+            int descriptorId = lookup(parent, name);
             if (descriptorId == -1) {
-                System.out.println("Could not find '" + name + "'");
-                return;
+                truncateTimer.recordError();
+                Log.warn("Could not find '" + name + "'");
+                return false;
             }
-            Descriptor currentFileDescriptor = descriptors[descriptorId];
-            int currentSize = currentFileDescriptor.getFileSize();
-            if (currentSize == size) {
-                System.out.println("File '" + name + "' is already the size of " + size);
-                return;
-            }
-            int currentBlocks = currentFileDescriptor.getBlockMap().size();
-            int neededBlocks = blockManager.calculateBlockNeeded(size);
-            int differenceBlocks = Math.abs(currentBlocks - neededBlocks);
-
-            System.out.println("Blocks needed: " + neededBlocks);
-            if (currentSize > size) { // Lowering fileSize
-                if (currentBlocks > neededBlocks) {
-                    blockManager.freeBlocks(currentFileDescriptor, differenceBlocks);
+            Descriptor currentFileDescriptor = getDescriptor(descriptorId);
+            Lock lock = currentFileDescriptor.getLock().writeLock();
+            lock.lock();
+            blockManager.beginTransaction();
+            try {
+                if (currentFileDescriptor.isRemoved()) {
+                    truncateTimer.recordError();
+                    Log.warn("Could not find '" + name + "'");
+                    return false;
                 }
-                currentFileDescriptor.setFileSize(size);
-                currentFileDescriptor.setOffset(0);
-            } else { // Increasing fileSize
-                if (currentBlocks < neededBlocks) {
-                    blockManager.allocateBlocks(currentFileDescriptor, differenceBlocks);
+                long currentSize = currentFileDescriptor.getFileSize();
+                if (currentSize == size) {
+                    truncateTimer.recordError();
+                    Log.warn("File '" + name + "' is already the size of " + size);
+                    return false;
                 }
-                currentFileDescriptor.setFileSize(size);
-                blockManager.fillWithZeroes(currentFileDescriptor);
+                int currentBlocks = currentFileDescriptor.getBlockMap().size();
+                int neededBlocks = blockManager.calculateBlockNeeded(size);
+                int differenceBlocks = Math.abs(currentBlocks - neededBlocks);
+
+                Log.debug(() -> "Blocks needed: " + neededBlocks);
+                if (currentSize > size && currentFileDescriptor.isCompressed()) {
+                    blockManager.shrinkChunks(currentFileDescriptor, size);
+                } else if (currentSize > size) { // Lowering fileSize
+                    if (currentBlocks > neededBlocks) {
+                        blockManager.freeBlocks(currentFileDescriptor, differenceBlocks);
+                    }
+                    currentFileDescriptor.setFileSize(size);
+                } else if (currentFileDescriptor.isFile()) { // Increasing fileSize, blocks are allocated once written
+                    if (!blockManager.extendSparse(currentFileDescriptor, size)) {
+                        truncateTimer.recordError();
+                        return false;
+                    }
+                } else {
+                    if (currentBlocks < neededBlocks
+                            && !blockManager.allocateBlocks(currentFileDescriptor, differenceBlocks)) {
+                        truncateTimer.recordError();
+                        return false;
+                    }
+                    currentFileDescriptor.setFileSize(size);
+                    blockManager.fillWithZeroes(currentFileDescriptor, currentSize, size);
+                }
+                return true;
+            } finally {
+                blockManager.commitTransaction();
+                lock.unlock();
             }
         } catch (PathResolutionException e) {
-            System.out.println(e.getMessage());
+            truncateTimer.recordError();
+            Log.warn(e.getMessage());
+            return false;
+        } finally {
+            truncateTimer.record(started);
         }
     }
 
-    public void stat(String path) {
+    // Deallocates the whole blocks of the range, the file keeps its size and the range reads as zeroes
+    public boolean punchHole(String path, long offset, long length) {
+        if (isReadOnly()) {
+            return false;
+        }
         try {
-            PathTarget result = resolvePath(path);
+            PathTarget result = resolvePath(path, true);
             String name = result.name();
             Descriptor parent = result.parent();
 
-            int descriptorId = blockManager.findDescriptorId(parent, name);
+            int descriptorId = lookup(parent, name);
             if (descriptorId == -1) {
-                System.out.println("Could not find '" + name + "'");
-                return;
-            }
-            Descriptor currentFileDescriptor = descriptors[descriptorId];
-            System.out.println("File type: " + currentFileDescriptor.getFileType());
-            System.out.println("File size: " + currentFileDescriptor.getFileSize());
-            System.out.println("Offset: " + currentFileDescriptor.getOffset());
-            System.out.println("Blocks in use: " + currentFileDescriptor.getBlockMap());
-            System.out.println("Links amount: " + currentFileDescriptor.getLinkAm());
-            System.out.println("Id: " + currentFileDescriptor.getId());
-            System.out.println("Parent: " + currentFileDescriptor.getParent().getId());
+                Log.warn("Could not find '" + name + "'");
+                return false;
+            }
+            Descriptor currentFileDescriptor = getDescriptor(descriptorId);
+            if (!currentFileDescriptor.isFile()) {
+                Log.warn("File '" + name + "' is not a regular file");
+                return false;
+            }
+            Lock lock = currentFileDescriptor.getLock().writeLock();
+            lock.lock();
+            try {
+                if (currentFileDescriptor.isRemoved()) {
+                    Log.warn("Could not find '" + name + "'");
+                    return false;
+                }
+                int freed = blockManager.punchHole(currentFileDescriptor, offset, length);
+                Log.info(() -> "Punched hole in '" + name + "', freed " + freed + " blocks");
+                return true;
+            } finally {
+                lock.unlock();
+            }
         } catch (PathResolutionException e) {
-            System.out.println(e.getMessage());
+            Log.warn(e.getMessage());
+            return false;
         }
     }
 
-    public void seek(int fd, int offset) {
-        if (openFiles[fd] == null) {
-            System.out.println("Could not find open file with fd = " + fd);
-            return;
+    // Data of a compressed file is stored in chunks of Settings.COMPRESSION_CHUNK_BLOCKS blocks. The mode can only
+    // change while the file has no blocks
+    public boolean setCompression(String path, boolean enabled) {
+        if (isReadOnly()) {
+            return false;
+        }
+        try {
+            PathTarget result = resolvePath(path, true);
+            String name = result.name();
+            int descriptorId = lookup(result.parent(), name);
+            if (descriptorId == -1) {
+                Log.warn("Could not find '" + name + "'");
+                return false;
+            }
+            Descriptor descriptor = getDescriptor(descriptorId);
+            if (!descriptor.isFile()) {
+                Log.warn("File '" + name + "' is not a regular file");
+                return false;
+            }
+            Lock lock = descriptor.getLock().writeLock();
+            lock.lock();
+            blockManager.beginTransaction();
+            try {
+                if (descriptor.isRemoved()) {
+                    Log.warn("Could not find '" + name + "'");
+                    return false;
+                }
+                if (descriptor.isCompressed() == enabled) {
+                    return true;
+                }
+                if (descriptor.getBlockMap().allocatedCount() > 0) {
+                    Log.warn("File '" + name + "' has data, compression can only be changed while it is empty");
+                    return false;
+                }
+                inodes.setCompressed(descriptorId, enabled);
+                blockManager.storeBlockMap(descriptor);
+                Log.info(() -> "Compression of '" + name + "' turned " + (enabled ? "on" : "off"));
+                return true;
+            } finally {
+                blockManager.commitTransaction();
+                lock.unlock();
+            }
+        } catch (PathResolutionException e) {
+            Log.warn(e.getMessage());
+            return false;
         }
-        openFiles[fd].setOffset(offset);
-        System.out.println("Offset set to: " + openFiles[fd].getOffset() + " for file with fd = " + fd);
     }
 
-    public void open(String path) {
+    // Returns null when the file can't be found
+    public FileStat getStat(String path) {
         try {
-            PathTarget result = resolvePath(path);
+            PathTarget result = resolvePath(path, true);
             String name = result.name();
             Descriptor parent = result.parent();
 
-            int descriptorId = blockManager.findDescriptorId(parent, name);
+            int descriptorId = lookup(parent, name);
             if (descriptorId == -1) {
-                System.out.println("Could not find " + "'" + name + "'");
-                return;
+                Log.warn("Could not find '" + name + "'");
+                return null;
             }
-            Descriptor currentFileDescriptor = descriptors[descriptorId];
-            for (int i = 0; i < Settings.MAX_DESCRIPTORS; i++) {
-                if (openFiles[i] == null) {
-                    openFiles[i] = currentFileDescriptor;
-                    System.out.println("File '" + name + "' opened with fd = " + i);
-                    return;
+            Descriptor currentFileDescriptor = getDescriptor(descriptorId);
+            Lock lock = currentFileDescriptor.getLock().readLock();
+            lock.lock();
+            try {
+                if (currentFileDescriptor.isRemoved()) {
+                    Log.warn("Could not find '" + name + "'");
+                    return null;
                 }
+                ExtentMap blockMap = currentFileDescriptor.getBlockMap();
+                return new FileStat(currentFileDescriptor.getId(), currentFileDescriptor.getFileType(),
+                        currentFileDescriptor.getFileSize(), currentFileDescriptor.getLinkAm(), currentFileDescriptor.getParentId(),
+                        blockMap.allocatedCount(), (long) blockMap.allocatedCount() * blockManager.getBlockSize(), blockMap.toString(),
+                        currentFileDescriptor.isCompressed(), blockManager.compressionRatio(currentFileDescriptor));
+            } finally {
+                lock.unlock();
             }
-            System.out.println("Failed to open file '" + name + "'");
         } catch (PathResolutionException e) {
-            System.out.println(e.getMessage());
+            Log.warn(e.getMessage());
+            return null;
         }
     }
 
-    public void close(int fd) {
-        if (openFiles[fd] == null) {
-            System.out.println("Could not find file with fd = " + fd);
-            return;
+    private OpenFile getOpenFile(int fd) {
+        if (fd < 0 || fd >= openFiles.length) {
+            return null;
         }
-        openFiles[fd] = null;
-        System.out.println("Closed file with fd = " + fd);
-    }
-
-    public void read(int fd, int size) {
-        if (openFiles[fd] == null) {
-            System.out.println("Could not find  file with fd = " + fd);
-            return;
+        synchronized (openFiles) {
+            return openFiles[fd];
         }
-        Descriptor currentFileDescriptor = openFiles[fd];
-        System.out.println(blockManager.read(currentFileDescriptor, size, true));
     }
 
-    public void write(int fd, String data) {
-        if (openFiles[fd] == null) {
-            System.out.println("Could not find  file with fd = " + fd);
-            return;
+    public boolean seek(int fd, long offset) {
+        OpenFile openFile = getOpenFile(fd);
+        if (openFile == null) {
+            Log.warn("Could not find open file with fd = " + fd);
+            return false;
         }
-        Descriptor currentFileDescriptor = openFiles[fd];
-        blockManager.write(currentFileDescriptor, data);
+        synchronized (openFile) {
+            openFile.setOffset(offset);
+        }
+        Log.info(() -> "Offset set to: " + openFile.getOffset() + " for file with fd = " + fd);
+        return true;
     }
 
-    private final int max_links = 2;
-    private int depth = 0;
+    public void open(String path) {
+        open(path, OpenFile.READ | OpenFile.WRITE);
+    }
 
-    public String resolveSymlinks(String path) {
-        if (depth > max_links) {
-            return null;
+    public int open(String path, int flags) {
+        if ((flags & OpenFile.WRITE) != 0 && isReadOnly()) {
+            return -1;
         }
-        String[] buffer = path.split("/");
-        int cwId = 0;
+        long started = openTimer.start();
+        try {
+            PathTarget result = resolvePath(path, true);
+            String name = result.name();
+            Descriptor parent = result.parent();
 
-        //If given path is local check if first file on path exists and is a symlink
-        if (!path.startsWith("/")) {
-            cwId = blockManager.findDescriptorId(cwd, buffer[0]);
+            int descriptorId = lookup(parent, name);
+            if (descriptorId == -1) {
+                openTimer.recordError();
+                Log.warn("Could not find " + "'" + name + "'");
+                return -1;
+            }
+            Descriptor currentFileDescriptor = getDescriptor(descriptorId);
+            // The read lock keeps an unlink from releasing the file before it is counted as open
+            Lock lock = currentFileDescriptor.getLock().readLock();
+            lock.lock();
+            try {
+                if (currentFileDescriptor.isRemoved()) {
+                    openTimer.recordError();
+                    Log.warn("Could not find " + "'" + name + "'");
+                    return -1;
+                }
+                synchronized (openFiles) {
+                    int fd = freeFds.take();
+                    if (fd != -1) {
+                        openFiles[fd] = new OpenFile(currentFileDescriptor, flags);
+                        inodes.setOpenCount(descriptorId, inodes.getOpenCount(descriptorId) + 1);
+                        Log.info(() -> "File '" + name + "' opened with fd = " + fd);
+                        return fd;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            openTimer.recordError();
+            Log.warn("Failed to open file '" + name + "'");
+            return -1;
+        } catch (PathResolutionException e) {
+            openTimer.recordError();
+            Log.warn(e.getMessage());
+            return -1;
+        } finally {
+            openTimer.record(started);
+        }
+    }
 
-            //In this method if findDescriptor returns -1 it is likely that user is trying to create file so it won`t exist of course
-            //since we handle this situations in resolvePath we can just return path back
-            if (cwId == -1) {
-                return path;
+    // Closing the last fd of a file that has no links left releases it
+    public boolean close(int fd) {
+        OpenFile openFile = getOpenFile(fd);
+        if (openFile == null) {
+            Log.warn("Could not find file with fd = " + fd);
+            return false;
+        }
+        Descriptor descriptor = openFile.getDescriptor();
+        descriptor.getLock().writeLock().lock();
+        try {
+            int remaining;
+            synchronized (openFiles) {
+                if (openFiles[fd] != openFile) {
+                    Log.warn("Could not find file with fd = " + fd);
+                    return false;
+                }
+                openFiles[fd] = null;
+                freeFds.release(fd);
+                // A removed directory may have given its slot to another file already
+                if (descriptor.isRemoved()) {
+                    remaining = -1;
+                } else {
+                    remaining = inodes.getOpenCount(descriptor.getId()) - 1;
+                    inodes.setOpenCount(descriptor.getId(), remaining);
+                }
             }
-            if (symlinks.contains(descriptors[cwId])) {
-                path = path.replace(buffer[0], blockManager.readDirectory(descriptors[cwId]));
-                depth++;
-                return resolveSymlinks(path);
+            if (remaining == 0 && descriptor.getLinkAm() == 0) {
+                synchronized (openFiles) {
+                    orphans--;
+                }
+                blockManager.beginTransaction();
+                try {
+                    release(descriptor);
+                } finally {
+                    blockManager.commitTransaction();
+                }
+                Log.info(() -> "Closed file with fd = " + fd + ", its data was released");
+                return true;
             }
+        } finally {
+            descriptor.getLock().writeLock().unlock();
         }
+        Log.info(() -> "Closed file with fd = " + fd);
+        return true;
+    }
 
-        //Check other elements in path if there are any symlinks
-        for (int i = 1; i < buffer.length-1; i++) {
-            cwId = blockManager.findDescriptorId(descriptors[cwId], buffer[i]);
-            if (symlinks.contains(descriptors[cwId])) {
-                path = path.replace(buffer[i], blockManager.readDirectory(descriptors[cwId]));
-                depth++;
-                return resolveSymlinks(path);
+    public int read(int fd, ByteBuffer buffer) {
+        long started = readTimer.start();
+        try {
+            OpenFile openFile = getReadable(fd);
+            if (openFile == null) {
+                readTimer.recordError();
+                return -1;
+            }
+            Descriptor descriptor = openFile.getDescriptor();
+            synchronized (openFile) {
+                descriptor.getLock().readLock().lock();
+                try {
+                    if (descriptor.isRemoved()) {
+                        readTimer.recordError();
+                        Log.warn("File with fd = " + fd + " was removed");
+                        return -1;
+                    }
+                    int length = blockManager.read(descriptor, openFile.getOffset(), buffer);
+                    openFile.advance(length);
+                    bytesRead.add(length);
+                    return length;
+                } finally {
+                    descriptor.getLock().readLock().unlock();
+                }
             }
+        } finally {
+            readTimer.record(started);
         }
-        return path;
     }
 
-    public PathTarget resolvePath(String path) throws PathResolutionException {
-        depth = 0;
+    public void write(int fd, String data) {
+        write(fd, ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+    }
 
-        path = resolveSymlinks(path);
+    public int write(int fd, ByteBuffer buffer) {
+        long started = writeTimer.start();
+        try {
+            OpenFile openFile = getWritable(fd);
+            if (openFile == null) {
+                writeTimer.recordError();
+                return -1;
+            }
+            Descriptor descriptor = openFile.getDescriptor();
+            synchronized (openFile) {
+                descriptor.getLock().writeLock().lock();
+                try {
+                    if (descriptor.isRemoved()) {
+                        writeTimer.recordError();
+                        Log.warn("File with fd = " + fd + " was removed");
+                        return -1;
+                    }
+                    int length = blockManager.write(descriptor, openFile.getOffset(), buffer);
+                    if (length < 0) {
+                        writeTimer.recordError();
+                    } else if (length > 0) {
+                        openFile.advance(length);
+                        bytesWritten.add(length);
+                    }
+                    return length;
+                } finally {
+                    descriptor.getLock().writeLock().unlock();
+                }
+            }
+        } finally {
+            writeTimer.record(started);
+        }
+    }
 
-        if (path == null) {
-            throw new PathResolutionException("Too many symbolic links");
+    // Positional reads and writes don't use or move the offset of the open file
+    public int pread(int fd, long position, ByteBuffer buffer) {
+        long started = readTimer.start();
+        try {
+            OpenFile openFile = getReadable(fd);
+            if (openFile == null) {
+                readTimer.recordError();
+                return -1;
+            }
+            Descriptor descriptor = openFile.getDescriptor();
+            descriptor.getLock().readLock().lock();
+            try {
+                if (descriptor.isRemoved()) {
+                    readTimer.recordError();
+                    Log.warn("File with fd = " + fd + " was removed");
+                    return -1;
+                }
+                int length = blockManager.read(descriptor, position, buffer);
+                bytesRead.add(length);
+                return length;
+            } finally {
+                descriptor.getLock().readLock().unlock();
+            }
+        } finally {
+            readTimer.record(started);
         }
+    }
 
-        //I am a bit lazy so to allocate memory for root directory I use truncate,
-        //since truncate is checking for name == / we just pass it, and we don`t care about descriptor
-        if (Objects.equals(path, "/")) {
-            return new PathTarget(null, "/");
+    public void pwrite(int fd, long position, String data) {
+        pwrite(fd, position, ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public int pwrite(int fd, long position, ByteBuffer buffer) {
+        long started = writeTimer.start();
+        try {
+            OpenFile openFile = getWritable(fd);
+            if (openFile == null) {
+                writeTimer.recordError();
+                return -1;
+            }
+            Descriptor descriptor = openFile.getDescriptor();
+            descriptor.getLock().writeLock().lock();
+            try {
+                if (descriptor.isRemoved()) {
+                    writeTimer.recordError();
+                    Log.warn("File with fd = " + fd + " was removed");
+                    return -1;
+                }
+                int length = blockManager.write(descriptor, position, buffer);
+                if (length < 0) {
+                    writeTimer.recordError();
+                } else if (length > 0) {
+                    bytesWritten.add(length);
+                }
+                return length;
+            } finally {
+                descriptor.getLock().writeLock().unlock();
+            }
+        } finally {
+            writeTimer.record(started);
         }
+    }
 
-        String[] buffer = path.split("/");
+    private OpenFile getReadable(int fd) {
+        OpenFile openFile = getOpenFile(fd);
+        if (openFile == null) {
+            Log.warn("Could not find  file with fd = " + fd);
+            return null;
+        }
+        if (!openFile.canRead()) {
+            Log.warn("File with fd = " + fd + " is not open for reading");
+            return null;
+        }
+        return openFile;
+    }
 
-        //If path is just a name of a file we skip everything and return name
-        if (buffer.length == 1) {
-            return new PathTarget(cwd, buffer[0]);
+    private OpenFile getWritable(int fd) {
+        OpenFile openFile = getOpenFile(fd);
+        if (openFile == null) {
+            Log.warn("Could not find  file with fd = " + fd);
+            return null;
         }
+        if (!openFile.canWrite()) {
+            Log.warn("File with fd = " + fd + " is not open for writing");
+            return null;
+        }
+        return openFile;
+    }
 
-        int cwId = 0; //descriptorId that will contain next file on path
+    // The last component is not followed when it is a symbolic link, the link itself is the target
+    public PathTarget resolvePath(String path) throws PathResolutionException {
+        return resolvePath(path, false);
+    }
 
-        //If given path is local check if first file on path exists and is a directory
-        if (!Objects.equals(buffer[0], "")) {
-            cwId = blockManager.findDescriptorId(cwd, buffer[0]);
-            if (cwId == -1) {
-                throw new PathResolutionException("Could not find '" + buffer[0] + "'");
+    // Walks the path once. A symbolic link on the way is replaced by the components of its target at the front
+    // of the components still to walk, so a path through several links is one walk and not a rewrite per link.
+    // The last component is returned with the directory holding it, whether it exists or not. The root comes back
+    // as "." in the root
+    public PathTarget resolvePath(String path, boolean followLast) throws PathResolutionException {
+        long started = resolveTimer.start();
+        try {
+            Deque<String> components = new ArrayDeque<>();
+            for (String component : path.split("/")) {
+                if (!component.isEmpty()) {
+                    components.addLast(component);
+                }
+            }
+            boolean absolute = path.startsWith("/");
+            if (components.isEmpty()) {
+                return absolute ? new PathTarget(rootDescriptor, ".") : new PathTarget(cwd, path);
             }
-            if (Objects.equals(descriptors[cwId].getFileType(), "file")) {
-                throw new PathResolutionException("File '" + buffer[0] + "' is not a directory");
+            Descriptor directory = absolute ? rootDescriptor : cwd;
+            int links = 0;
+            while (true) {
+                String name = components.pollFirst();
+                boolean last = components.isEmpty();
+                if (last && !followLast) {
+                    return new PathTarget(directory, name);
+                }
+                int descriptorId = lookup(directory, name);
+                if (descriptorId == -1) {
+                    if (last) {
+                        return new PathTarget(directory, name);
+                    }
+                    throw new PathResolutionException("Could not find '" + name + "'");
+                }
+                Descriptor next = getDescriptor(descriptorId);
+                if (next.isSymlink()) {
+                    if (++links > Settings.MAX_SYMLINKS) {
+                        throw new PathResolutionException("Too many symbolic links");
+                    }
+                    SymlinkTarget target = linkTarget(next);
+                    String[] targetComponents = target.components();
+                    for (int i = targetComponents.length - 1; i >= 0; i--) {
+                        components.addFirst(targetComponents[i]);
+                    }
+                    if (target.absolute()) {
+                        directory = rootDescriptor;
+                    }
+                    // A link to a directory itself, "/" for one
+                    if (components.isEmpty()) {
+                        return new PathTarget(directory, ".");
+                    }
+                    continue;
+                }
+                if (last) {
+                    return new PathTarget(directory, name);
+                }
+                if (!next.isDirectory()) {
+                    throw new PathResolutionException("File '" + name + "' is not a directory");
+                }
+                directory = next;
             }
+        } catch (PathResolutionException e) {
+            resolveTimer.recordError();
+            throw e;
+        } finally {
+            resolveTimer.record(started);
         }
+    }
 
-        //Check if other files on path exist and are directories
-        for (int i = 1; i < buffer.length - 1; i++) {
-            cwId = blockManager.findDescriptorId(descriptors[cwId], buffer[i]);
-            if (cwId == -1) {
-                throw new PathResolutionException("Could not find '" + buffer[i] + "'");
-            }
-            if (Objects.equals(descriptors[cwId].getFileType(), "file")) {
-                throw new PathResolutionException("File '" + buffer[i] + "' is not a directory");
+    // Targets never change, so a link is read and parsed once
+    private SymlinkTarget linkTarget(Descriptor symlink) throws PathResolutionException {
+        SymlinkTarget target = inodes.getLinkTarget(symlink.getId());
+        if (target != null) {
+            return target;
+        }
+        Lock lock = symlink.getLock().readLock();
+        lock.lock();
+        try {
+            if (symlink.isRemoved()) {
+                throw new PathResolutionException("Symbolic link was removed");
             }
+            target = SymlinkTarget.parse(blockManager.readSymLink(symlink));
+            inodes.setLinkTarget(symlink.getId(), target);
+            return target;
+        } finally {
+            lock.unlock();
         }
-
-        return new PathTarget(descriptors[cwId], buffer[buffer.length - 1]);
     }
 
-    public void mkdir(String path) {
+    public boolean mkdir(String path) {
+        if (isReadOnly()) {
+            return false;
+        }
+        long started = mkdirTimer.start();
         try {
             PathTarget result = resolvePath(path);
             String name = result.name();
             Descriptor parent = result.parent();
 
-            for (int i = 0; i < Settings.MAX_DESCRIPTORS; i++) {
-                if (descriptors[i] == null) {
-                    descriptors[i] = new Descriptor(i, parent, 1);
-                    descriptors[i].increaseLinksAmount();
-                    blockManager.addEntry(parent, name, i);
-
-                    // Allocating memory to newly created directory and adding essential links
-                    truncate(path, Settings.DIR_DEFAULT_SIZE);
-                    blockManager.addEntry(descriptors[i], ".", i);
-                    blockManager.addEntry(descriptors[i], "..", parent.getId());
-
-                    System.out.println("Directory '" + name + "'" + " created");
-                    return;
+            Lock lock = parent.getLock().writeLock();
+            lock.lock();
+            blockManager.beginTransaction();
+            try {
+                if (lookup(parent, name) != -1) {
+                    mkdirTimer.recordError();
+                    Log.warn("File '" + name + "' already exists");
+                    return false;
+                }
+                Descriptor directory = allocateDescriptor(parent, InodeTable.DIRECTORY);
+                if (directory != null) {
+                    int id = directory.getId();
+                    inodes.setName(id, name);
+                    // Allocating memory to newly created directory and adding essential links,
+                    // all before the parent entry makes it reachable by other threads
+                    if (blockManager.formatDirectory(directory)
+                            && blockManager.addEntry(directory, ".", id)
+                            && blockManager.addEntry(directory, "..", parent.getId())
+                            && blockManager.addEntry(parent, name, id)) {
+                        dentryCache.put(parent.getId(), name, id);
+                        directory.increaseLinksAmount();
+                        Log.info(() -> "Directory '" + name + "'" + " created");
+                        return true;
+                    }
+                    blockManager.freeBlocks(directory, directory.getBlockMap().size());
+                    removeDescriptor(id);
                 }
+                mkdirTimer.recordError();
+                Log.warn("Failed to create directory '" + name + "'");
+                return false;
+            } finally {
+                blockManager.commitTransaction();
+                lock.unlock();
             }
-            System.out.println("Failed to create directory '" + name + "'");
         } catch (PathResolutionException e) {
-            System.out.println(e.getMessage());
+            mkdirTimer.recordError();
+            Log.warn(e.getMessage());
+            return false;
+        } finally {
+            mkdirTimer.record(started);
         }
     }
 
-    public void rmdir(String path) {
+    public boolean rmdir(String path) {
+        if (isReadOnly()) {
+            return false;
+        }
         try {
             PathTarget result = resolvePath(path);
             String name = result.name();
             Descriptor parent = result.parent();
-
-            int descriptorId = blockManager.findDescriptorId(parent, name);
-            if (descriptorId == -1) {
-                System.out.println("Could not find " + "'" + name + "'");
-                return;
-            }
-            if (!Objects.equals(descriptors[descriptorId].getFileType(), "directory")) {
-                System.out.println("File '" + name + "' is not a directory");
-                return;
-            }
-            Descriptor currentFileDescriptor = descriptors[descriptorId];
-            if (currentFileDescriptor.getLinkAm() == 1) {
-                blockManager.freeBlocks(currentFileDescriptor, currentFileDescriptor.getBlockMap().size());
-                descriptors[descriptorId] = null;
-                System.out.println("File '" + name + "' was fully removed.");
+            if (isSpecialName(name)) {
+                Log.warn("Can't remove '" + path + "'");
+                return false;
             }
 
-            currentFileDescriptor.decreaseLinksAmount();
-            blockManager.deleteEntry(parent, name);
+            while (true) {
+                int descriptorId = lookup(parent, name);
+                if (descriptorId == -1) {
+                    Log.warn("Could not find " + "'" + name + "'");
+                    return false;
+                }
+                Descriptor currentFileDescriptor = getDescriptor(descriptorId);
+                List<Lock> locks = lockAll(parent, currentFileDescriptor);
+                if (lookup(parent, name) != descriptorId || currentFileDescriptor.isRemoved()) {
+                    unlockAll(locks);
+                    continue;
+                }
+                if (!currentFileDescriptor.isDirectory()) {
+                    unlockAll(locks);
+                    Log.warn("File '" + name + "' is not a directory");
+                    return false;
+                }
+                blockManager.beginTransaction();
+                try {
+                    currentFileDescriptor.decreaseLinksAmount();
+                    if (currentFileDescriptor.getLinkAm() == 0) {
+                        blockManager.freeBlocks(currentFileDescriptor, currentFileDescriptor.getBlockMap().size());
+                        removeDescriptor(descriptorId);
+                        dentryCache.invalidateDirectory(descriptorId);
+                        // Whatever was below it can't keep a path through it
+                        pathGeneration.incrementAndGet();
+                        Log.info(() -> "File '" + name + "' was fully removed.");
+                    }
+
+                    blockManager.deleteEntry(parent, name);
+                    dentryCache.invalidate(parent.getId(), name);
+                    return true;
+                } finally {
+                    blockManager.commitTransaction();
+                    unlockAll(locks);
+                }
+            }
         } catch (PathResolutionException e) {
-            System.out.println(e.getMessage());
+            Log.warn(e.getMessage());
+            return false;
         }
     }
 
-    public void cd(String path) {
+    public boolean cd(String path) {
         try {
             if (Objects.equals(path, "/")) {
                 cwd = rootDescriptor;
-                return;
+                return true;
             }
 
             if (Objects.equals(path, ".")) {
-                return;
+                return true;
             }
 
+            // The root is its own parent
             if (Objects.equals(path, "..")) {
-                cwd = cwd.getParent();
-                return;
+                if (cwd.getId() != 0) {
+                    cwd = getDescriptor(cwd.getParentId());
+                }
+                return true;
             }
 
-            PathTarget result = resolvePath(path);
+            PathTarget result = resolvePath(path, true);
             String name = result.name();
             Descriptor parent = result.parent();
 
-            int descriptorId = blockManager.findDescriptorId(parent, name);
+            int descriptorId = lookup(parent, name);
             if (descriptorId == -1) {
-                System.out.println("Could not find " + "'" + name + "'");
-                return;
+                Log.warn("Could not find " + "'" + name + "'");
+                return false;
             }
-            if (!Objects.equals(descriptors[descriptorId].getFileType(), "directory")) {
-                System.out.println("File '" + name + "' is not a directory");
-                return;
+            if (!getDescriptor(descriptorId).isDirectory()) {
+                Log.warn("File '" + name + "' is not a directory");
+                return false;
             }
 
-            cwd = descriptors[descriptorId];
+            cwd = getDescriptor(descriptorId);
+            return true;
         } catch (PathResolutionException e) {
-            System.out.println(e.getMessage());
+            Log.warn(e.getMessage());
+            return false;
         }
     }
 
-    public void createSymLink(String link, String path) {
+    public boolean createSymLink(String link, String path) {
+        if (isReadOnly()) {
+            return false;
+        }
         try {
             PathTarget result = resolvePath(path);
             String name = result.name();
             Descriptor parent = result.parent();
-            if (link.length() > 32) {
-                System.out.println("Link is too long");
-                return;
+            if (link.isEmpty() || link.getBytes(StandardCharsets.UTF_8).length > Settings.MAX_SYMLINK_LENGTH) {
+                Log.warn("Link is empty or too long");
+                return false;
             }
+            Lock lock = parent.getLock().writeLock();
+            lock.lock();
+            blockManager.beginTransaction();
+            try {
+                if (lookup(parent, name) != -1) {
+                    Log.warn("File '" + name + "' already exists");
+                    return false;
+                }
 
-            for (int i = 0; i < Settings.MAX_DESCRIPTORS; i++) {
-                if (descriptors[i] == null) {
-                    descriptors[i] = new Descriptor(i, parent, 2);
-                    descriptors[i].increaseLinksAmount();
-                    blockManager.addEntry(parent, name, i);
-
-                    // Allocating memory to newly created link and adding to lin
-                    truncate(path, 32);
-                    blockManager.write(descriptors[i], link);
-                    descriptors[i].setOffset(link.length());
-                    symlinks.add(descriptors[i]);
-                    System.out.println("Link '" + name + "' created successfully");
-                    return;
+                Descriptor symLink = allocateDescriptor(parent, InodeTable.SYMLINK);
+                if (symLink == null) {
+                    return false;
+                }
+                // Allocating memory to newly created link and storing its target before it becomes reachable
+                byte[] target = link.getBytes(StandardCharsets.UTF_8);
+                if (!blockManager.resize(symLink, target.length)
+                        || blockManager.write(symLink, 0, target, 0, target.length) == -1
+                        || !blockManager.addEntry(parent, name, symLink.getId())) {
+                    blockManager.freeBlocks(symLink, symLink.getBlockMap().size());
+                    removeDescriptor(symLink.getId());
+                    return false;
                 }
+                inodes.setLinkTarget(symLink.getId(), SymlinkTarget.parse(link));
+                dentryCache.put(parent.getId(), name, symLink.getId());
+                symLink.increaseLinksAmount();
+                Log.info(() -> "Link '" + name + "' created successfully");
+                return true;
+            } finally {
+                blockManager.commitTransaction();
+                lock.unlock();
             }
 
         } catch (PathResolutionException e) {
-            System.out.println(e.getMessage());
+            Log.warn(e.getMessage());
+            return false;
         }
 
     }
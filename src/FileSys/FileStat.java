@@ -0,0 +1,6 @@
+package FileSys;
+
+// Attributes of a file at the time it was looked up
+public record FileStat(int id, String fileType, long size, int links, int parentId, int allocatedBlocks,
+                       long allocatedBytes, String blocks, boolean compressed, double compressionRatio) {
+}
@@ -0,0 +1,79 @@
+package FileSys;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+// Intrusive doubly linked list of frame numbers, most recently added at the head
+class FrameList {
+    private final int[] prev;
+    private final int[] next;
+    private final boolean[] contained;
+    private int head = -1;
+    private int tail = -1;
+    private int size = 0;
+
+    FrameList(int frames) {
+        this.prev = new int[frames];
+        this.next = new int[frames];
+        this.contained = new boolean[frames];
+        Arrays.fill(prev, -1);
+        Arrays.fill(next, -1);
+    }
+
+    boolean contains(int frame) {
+        return contained[frame];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void addFirst(int frame) {
+        prev[frame] = -1;
+        next[frame] = head;
+        if (head != -1) {
+            prev[head] = frame;
+        } else {
+            tail = frame;
+        }
+        head = frame;
+        contained[frame] = true;
+        size++;
+    }
+
+    void remove(int frame) {
+        if (!contained[frame]) {
+            return;
+        }
+        if (prev[frame] != -1) {
+            next[prev[frame]] = next[frame];
+        } else {
+            head = next[frame];
+        }
+        if (next[frame] != -1) {
+            prev[next[frame]] = prev[frame];
+        } else {
+            tail = prev[frame];
+        }
+        prev[frame] = next[frame] = -1;
+        contained[frame] = false;
+        size--;
+    }
+
+    void moveToFront(int frame) {
+        if (head != frame) {
+            remove(frame);
+            addFirst(frame);
+        }
+    }
+
+    // Oldest frame accepted by evictable, or -1
+    int lastMatching(IntPredicate evictable) {
+        for (int frame = tail; frame != -1; frame = prev[frame]) {
+            if (evictable.test(frame)) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,332 @@
+package FileSys;
+
+import java.nio.LongBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class FreeSpaceMap {
+    private static final long FULL = -1L;
+    // Every summary word covers 64 map words, each such stripe of the map is guarded by its own lock
+    private static final int STRIPE_BLOCKS = 64 * 64;
+
+    private final int size;
+    private final int wordCount;
+    private final int summaryCount;
+    // Region layout: [free count][summary words][map words], so a mapped region is the whole persistent state
+    private final LongBuffer region;
+    private final ReentrantLock[] stripes;
+    private final Object countLock = new Object();
+    private volatile int freeCount;
+    // Rotating hint of every thread starts in a different stripe, so threads don't fight over the same lock
+    private final ThreadLocal<int[]> hint;
+
+    public FreeSpaceMap(int size) {
+        this(size, LongBuffer.allocate(regionLength(size)), true);
+    }
+
+    public FreeSpaceMap(int size, LongBuffer region, boolean format) {
+        this.size = size;
+        this.wordCount = (size + 63) >>> 6;
+        this.summaryCount = (wordCount + 63) >>> 6;
+        this.region = region;
+        this.stripes = new ReentrantLock[summaryCount];
+        for (int s = 0; s < summaryCount; s++) {
+            stripes[s] = new ReentrantLock();
+        }
+        this.hint = ThreadLocal.withInitial(() ->
+                new int[]{(int) (Thread.currentThread().threadId() % summaryCount) * STRIPE_BLOCKS});
+        if (format) {
+            format();
+        }
+        this.freeCount = (int) region.get(0);
+    }
+
+    // Number of longs needed to store the map of a volume with size blocks
+    public static int regionLength(int size) {
+        int wordCount = (size + 63) >>> 6;
+        return 1 + ((wordCount + 63) >>> 6) + wordCount;
+    }
+
+    private void format() {
+        for (int i = 0; i < regionLength(size); i++) {
+            region.put(i, 0);
+        }
+        region.put(0, size);
+        for (int w = 0; w < wordCount; w++) {
+            setSummary(w >>> 6, getSummary(w >>> 6) | (1L << w));
+        }
+        // Bits past the end of the volume are permanently marked as used
+        int tail = size & 63;
+        if (tail != 0) {
+            setWord(wordCount - 1, FULL << tail);
+        }
+    }
+
+    private long getWord(int w) {
+        return region.get(1 + summaryCount + w);
+    }
+
+    private void setWord(int w, long value) {
+        region.put(1 + summaryCount + w, value);
+    }
+
+    private long getSummary(int s) {
+        return region.get(1 + s);
+    }
+
+    private void setSummary(int s, long value) {
+        region.put(1 + s, value);
+    }
+
+    private void addFreeCount(int delta) {
+        if (delta == 0) {
+            return;
+        }
+        synchronized (countLock) {
+            freeCount += delta;
+            region.put(0, freeCount);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int freeCount() {
+        return freeCount;
+    }
+
+    public boolean isFree(int block) {
+        return (getWord(block >>> 6) & (1L << block)) == 0;
+    }
+
+    // Returns a single free block starting the search at the rotating hint, or -1 if the volume is full
+    public int allocate() {
+        if (freeCount == 0) {
+            return -1;
+        }
+        int[] threadHint = hint.get();
+        int first = Math.min(threadHint[0], size - 1) / STRIPE_BLOCKS;
+        for (int k = 0; k < summaryCount; k++) {
+            int s = (first + k) % summaryCount;
+            if (getSummary(s) == 0) {
+                continue;
+            }
+            stripes[s].lock();
+            try {
+                long bits = getSummary(s);
+                if (bits == 0) {
+                    continue;
+                }
+                int w = (s << 6) + Long.numberOfTrailingZeros(bits);
+                int block = (w << 6) + Long.numberOfTrailingZeros(~getWord(w));
+                addFreeCount(-setUsed(block, 1));
+                threadHint[0] = block + 1 < size ? block + 1 : 0;
+                return block;
+            } finally {
+                stripes[s].unlock();
+            }
+        }
+        return -1;
+    }
+
+    // Returns the first block of a run of length free blocks, or -1 if there is no such run
+    public int allocateContiguous(int length) {
+        return allocateContiguous(length, -1);
+    }
+
+    public int allocateContiguous(int length, int from) {
+        if (length <= 0 || length > freeCount) {
+            return -1;
+        }
+        int[] threadHint = hint.get();
+        if (from < 0 || from >= size) {
+            from = Math.min(threadHint[0], size - 1);
+        }
+        int start = length <= STRIPE_BLOCKS ? allocateInStripe(length, from) : allocateAcrossStripes(length, from);
+        if (start != -1) {
+            threadHint[0] = start + length < size ? start + length : 0;
+        }
+        return start;
+    }
+
+    // Runs that fit in a stripe are searched one stripe at a time, a run crossing two stripes is not found here
+    private int allocateInStripe(int length, int from) {
+        int first = from / STRIPE_BLOCKS;
+        for (int k = 0; k <= summaryCount; k++) {
+            int s = (first + k) % summaryCount;
+            int stripeStart = s * STRIPE_BLOCKS;
+            int stripeEnd = Math.min(stripeStart + STRIPE_BLOCKS, size);
+            int searchFrom = k == 0 ? from : stripeStart;
+            int searchTo = k == summaryCount ? Math.min(stripeEnd, from + length - 1) : stripeEnd;
+            if (searchFrom >= searchTo || getSummary(s) == 0) {
+                continue;
+            }
+            stripes[s].lock();
+            try {
+                int start = findRun(searchFrom, searchTo, length);
+                if (start != -1) {
+                    addFreeCount(-setUsed(start, length));
+                    return start;
+                }
+            } finally {
+                stripes[s].unlock();
+            }
+        }
+        return -1;
+    }
+
+    private int allocateAcrossStripes(int length, int from) {
+        // Stripes are always locked in ascending order
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            int start = findRun(from, size, length);
+            if (start == -1 && from > 0) {
+                start = findRun(0, Math.min(size, from + length - 1), length);
+            }
+            if (start != -1) {
+                addFreeCount(-setUsed(start, length));
+            }
+            return start;
+        } finally {
+            for (int s = stripes.length - 1; s >= 0; s--) {
+                stripes[s].unlock();
+            }
+        }
+    }
+
+    public void markUsed(int start, int length) {
+        int end = start + length;
+        int changed = 0;
+        for (int i = start; i < end; ) {
+            int s = i / STRIPE_BLOCKS;
+            int stripeEnd = Math.min((s + 1) * STRIPE_BLOCKS, end);
+            stripes[s].lock();
+            try {
+                changed += setUsed(i, stripeEnd - i);
+            } finally {
+                stripes[s].unlock();
+            }
+            i = stripeEnd;
+        }
+        addFreeCount(-changed);
+    }
+
+    public void free(int start, int length) {
+        int end = start + length;
+        int changed = 0;
+        for (int i = start; i < end; ) {
+            int s = i / STRIPE_BLOCKS;
+            int stripeEnd = Math.min((s + 1) * STRIPE_BLOCKS, end);
+            stripes[s].lock();
+            try {
+                changed += setFree(i, stripeEnd - i);
+            } finally {
+                stripes[s].unlock();
+            }
+            i = stripeEnd;
+        }
+        addFreeCount(changed);
+        int[] threadHint = hint.get();
+        if (start < threadHint[0]) {
+            threadHint[0] = start;
+        }
+    }
+
+    // Both setters expect the stripe lock to be held and return the amount of bits that changed
+    private int setUsed(int start, int length) {
+        int end = start + length;
+        int changed = 0;
+        int i = start;
+        while (i < end) {
+            int w = i >>> 6;
+            int bit = i & 63;
+            int count = Math.min(64 - bit, end - i);
+            long mask = count == 64 ? FULL : ((1L << count) - 1) << bit;
+            long word = getWord(w);
+            changed += Long.bitCount(~word & mask);
+            setWord(w, word | mask);
+            if ((word | mask) == FULL) {
+                setSummary(w >>> 6, getSummary(w >>> 6) & ~(1L << w));
+            }
+            i += count;
+        }
+        return changed;
+    }
+
+    private int setFree(int start, int length) {
+        int end = start + length;
+        int changed = 0;
+        int i = start;
+        while (i < end) {
+            int w = i >>> 6;
+            int bit = i & 63;
+            int count = Math.min(64 - bit, end - i);
+            long mask = count == 64 ? FULL : ((1L << count) - 1) << bit;
+            long word = getWord(w);
+            changed += Long.bitCount(word & mask);
+            setWord(w, word & ~mask);
+            setSummary(w >>> 6, getSummary(w >>> 6) | (1L << w));
+            i += count;
+        }
+        return changed;
+    }
+
+    // Index of the first word at or after w that has a free bit, using the summary level to skip full words
+    private int nextFreeWord(int w) {
+        if (w >= wordCount) {
+            return -1;
+        }
+        int s = w >>> 6;
+        long bits = getSummary(s) & (FULL << w);
+        while (true) {
+            if (bits != 0) {
+                return (s << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++s >= summaryCount) {
+                return -1;
+            }
+            bits = getSummary(s);
+        }
+    }
+
+    private int findRun(int from, int to, int length) {
+        int runStart = -1;
+        int runLength = 0;
+        int i = from;
+        while (i < to) {
+            int w = i >>> 6;
+            long word = getWord(w);
+            if (word == FULL) {
+                runLength = 0;
+                int next = nextFreeWord(w + 1);
+                if (next == -1) {
+                    return -1;
+                }
+                i = next << 6;
+                continue;
+            }
+            if (word == 0 && (i & 63) == 0) {
+                if (runLength == 0) {
+                    runStart = i;
+                }
+                runLength += 64;
+                i += 64;
+            } else if ((word & (1L << i)) == 0) {
+                if (runLength == 0) {
+                    runStart = i;
+                }
+                runLength++;
+                i++;
+            } else {
+                runLength = 0;
+                i++;
+            }
+            if (runLength >= length) {
+                return runStart + length <= to ? runStart : -1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,68 @@
+package FileSys;
+
+import java.nio.ByteBuffer;
+
+public class HeapBlockDevice implements BlockDevice {
+    private final int blockSize;
+    private final Block[] blocks;
+
+    public HeapBlockDevice(int blockSize, int blockCount) {
+        this.blockSize = blockSize;
+        this.blocks = new Block[blockCount];
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return blocks.length;
+    }
+
+    private Block getBlock(int blockId) {
+        if (blocks[blockId] == null) {
+            blocks[blockId] = new Block(blockSize);
+        }
+        return blocks[blockId];
+    }
+
+    @Override
+    public void read(int blockId, int offset, ByteBuffer dst, int length) {
+        // Blocks that were never written read as zeroes, only writers create them
+        Block block = blocks[blockId];
+        if (block == null) {
+            for (int i = 0; i < length; i++) {
+                dst.put((byte) 0);
+            }
+            return;
+        }
+        block.read(offset, dst, length);
+    }
+
+    @Override
+    public void write(int blockId, int offset, ByteBuffer src, int length) {
+        getBlock(blockId).write(offset, src, length);
+    }
+
+    @Override
+    public void fill(int blockId, int offset, int length, byte value) {
+        getBlock(blockId).fill(offset, length, value);
+    }
+
+    @Override
+    public void release(int blockId, int count) {
+        for (int i = blockId; i < blockId + count; i++) {
+            blocks[i] = null;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
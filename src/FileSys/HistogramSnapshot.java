@@ -0,0 +1,15 @@
+package FileSys;
+
+// Latencies are in nanoseconds, percentiles are upper bounds of power-of-two buckets
+public record HistogramSnapshot(String name, long count, long totalNanos, long maxNanos, long errors,
+                                long p50Nanos, long p90Nanos, long p99Nanos) {
+    public double meanNanos() {
+        return count == 0 ? 0 : (double) totalNanos / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-12s count: %d | errors: %d | mean: %.1f us | p50: %.1f us | p90: %.1f us | p99: %.1f us | max: %.1f us",
+                name, count, errors, meanNanos() / 1000, p50Nanos / 1000.0, p90Nanos / 1000.0, p99Nanos / 1000.0, maxNanos / 1000.0);
+    }
+}
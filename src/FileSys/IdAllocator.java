@@ -0,0 +1,114 @@
+package FileSys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Free ids below a limit, the lowest one is found in O(log64 limit). Level 0 has a bit per id that is set while
+// the id is free, every level above has a bit per word of the level below, set while that word has a free id.
+// Not thread safe, callers serialize
+public class IdAllocator {
+    private long[][] levels = {new long[1]};
+    private int limit;
+
+    public IdAllocator() {
+    }
+
+    public IdAllocator(int limit) {
+        grow(limit);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    // Ids from the current limit up to the new one become free
+    public void grow(int newLimit) {
+        grow(newLimit, true);
+    }
+
+    // Ids added as taken are released one by one once they are known to be free
+    public void grow(int newLimit, boolean free) {
+        if (newLimit <= limit) {
+            return;
+        }
+        // Capacity doubles, so a limit raised a page at a time rebuilds the upper levels only log n times
+        int words = levels[0].length;
+        while (words * 64L < newLimit) {
+            words *= 2;
+        }
+        if (words != levels[0].length) {
+            levels = build(Arrays.copyOf(levels[0], words));
+        }
+        for (int id = limit; free && id < newLimit; id++) {
+            release(id);
+        }
+        limit = newLimit;
+    }
+
+    private static long[][] build(long[] bits) {
+        List<long[]> built = new ArrayList<>();
+        built.add(bits);
+        long[] current = bits;
+        while (current.length > 1) {
+            long[] upper = new long[(current.length + 63) >>> 6];
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] != 0) {
+                    upper[i >>> 6] |= 1L << i;
+                }
+            }
+            built.add(upper);
+            current = upper;
+        }
+        return built.toArray(new long[0][]);
+    }
+
+    public boolean isFree(int id) {
+        return id >= 0 && id < limit && (levels[0][id >>> 6] & (1L << id)) != 0;
+    }
+
+    // Lowest free id, or -1. It stays free until it is reserved
+    public int findLowest() {
+        int word = 0;
+        for (int level = levels.length - 1; level >= 0; level--) {
+            long bits = levels[level][word];
+            if (bits == 0) {
+                return -1;
+            }
+            word = (word << 6) | Long.numberOfTrailingZeros(bits);
+        }
+        return word;
+    }
+
+    // Finds the lowest free id and reserves it, returns -1 when every id is taken
+    public int take() {
+        int id = findLowest();
+        if (id != -1) {
+            reserve(id);
+        }
+        return id;
+    }
+
+    public void reserve(int id) {
+        int index = id;
+        for (long[] level : levels) {
+            level[index >>> 6] &= ~(1L << index);
+            if (level[index >>> 6] != 0) {
+                return;
+            }
+            index >>>= 6;
+        }
+    }
+
+    public void release(int id) {
+        int index = id;
+        for (long[] level : levels) {
+            boolean hadFree = level[index >>> 6] != 0;
+            level[index >>> 6] |= 1L << index;
+            if (hadFree) {
+                return;
+            }
+            index >>>= 6;
+        }
+    }
+}
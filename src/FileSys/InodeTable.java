@@ -0,0 +1,442 @@
+package FileSys;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Attributes of every descriptor kept in parallel primitive arrays indexed by descriptor id.
+// Descriptor objects are only views over a slot made on demand, image-backed volumes also write every change to the
+// DescriptorTable. Slots share a fixed set of locks and only hold maps once they have blocks, so an empty file costs
+// the primitive fields of its slot.
+// The table grows by whole pages up to the maximum of the volume. Pages are never copied, so a slot that is
+// written while another thread adds a page keeps its value. A table with a store reads a page from it on first
+// use instead, so opening a volume doesn't depend on its size, and a page without used slots stays EMPTY
+public class InodeTable {
+    public static final int FREE = -1;
+    public static final int FILE = 0;
+    public static final int DIRECTORY = 1;
+    public static final int SYMLINK = 2;
+
+    // Flags of a slot
+    public static final int COMPRESSED = 1;
+
+    private static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(Settings.INODE_PAGE_SIZE);
+    private static final int PAGE_MASK = Settings.INODE_PAGE_SIZE - 1;
+    private static final int STRIPE_MASK = Settings.INODE_LOCK_STRIPES - 1;
+
+    private final int maxDescriptors;
+    private final DescriptorTable store;
+    // Slot i is guarded by locks[i & STRIPE_MASK]
+    private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[Settings.INODE_LOCK_STRIPES];
+    private volatile Page[] pages = new Page[0];
+    // Slots with memory behind them that are not taken, guarded by the table
+    private final IdAllocator freeIds = new IdAllocator();
+    // Pages below it have been read from the store
+    private int nextUnread = 0;
+
+    // A path is valid while the generation it was built in is current
+    private record CachedPath(String path, long generation) {
+    }
+
+    private static class Page {
+        private final int[] types = new int[Settings.INODE_PAGE_SIZE];
+        private final int[] links = new int[Settings.INODE_PAGE_SIZE];
+        private final long[] sizes = new long[Settings.INODE_PAGE_SIZE];
+        private final int[] parents = new int[Settings.INODE_PAGE_SIZE];
+        private final int[] flags = new int[Settings.INODE_PAGE_SIZE];
+        // Open file handles of the slot, only kept in memory
+        private final int[] openCounts = new int[Settings.INODE_PAGE_SIZE];
+        // Bumped when the slot is freed, a view made before that is removed
+        private final int[] generations = new int[Settings.INODE_PAGE_SIZE];
+        // Bit per slot whose block map is in memory, only used with a store
+        private final AtomicLongArray loaded = new AtomicLongArray(Settings.INODE_PAGE_SIZE / Long.SIZE);
+        // Null until the slot is first given blocks, a missing map is an empty one
+        private final ExtentMap[] blockMaps = new ExtentMap[Settings.INODE_PAGE_SIZE];
+        // Blocks of the image that hold the persisted copy of the block map
+        private final ExtentMap[] mapChains = new ExtentMap[Settings.INODE_PAGE_SIZE];
+        // Present only for compressed files
+        private final ChunkMap[] chunkMaps = new ChunkMap[Settings.INODE_PAGE_SIZE];
+        // Name of a directory in its parent and its absolute path, both only kept in memory
+        private final String[] names = new String[Settings.INODE_PAGE_SIZE];
+        private final CachedPath[] paths = new CachedPath[Settings.INODE_PAGE_SIZE];
+        // Parsed target of a symbolic link, read from its data on first use
+        private final SymlinkTarget[] linkTargets = new SymlinkTarget[Settings.INODE_PAGE_SIZE];
+
+        private Page() {
+            Arrays.fill(types, FREE);
+            Arrays.fill(parents, -1);
+        }
+
+        // Slots [first, end) as the store holds them, their block maps are read later by the block manager
+        private Page(DescriptorTable store, int first, int end) {
+            this();
+            for (int id = first; id < end; id++) {
+                if (store.isUsed(id)) {
+                    int slot = id & PAGE_MASK;
+                    types[slot] = store.getFileType(id);
+                    links[slot] = store.getLinkAm(id);
+                    sizes[slot] = store.getFileSize(id);
+                    parents[slot] = store.getParentId(id);
+                    flags[slot] = store.getFlags(id);
+                    chunkMaps[slot] = (flags[slot] & COMPRESSED) != 0 ? new ChunkMap() : null;
+                }
+            }
+        }
+    }
+
+    // Read from a page of the store that has no used slot. It is shared and only read, taking a slot in it gives
+    // the page one of its own
+    private static final Page EMPTY = new Page();
+
+    public InodeTable(int maxDescriptors) {
+        this(maxDescriptors, null);
+    }
+
+    // Every page of the store has a place from the start and is read on first use. Ids count as taken until the
+    // page holding them is read
+    public InodeTable(int maxDescriptors, DescriptorTable store) {
+        this.maxDescriptors = store == null ? maxDescriptors : Math.min(maxDescriptors, store.getCapacity());
+        this.store = store;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        if (store != null) {
+            pages = new Page[(this.maxDescriptors + PAGE_MASK) >>> PAGE_SHIFT];
+            freeIds.grow(this.maxDescriptors, false);
+        }
+    }
+
+    // Copy of every used slot that later changes don't reach, block maps included. The copy has no store and open
+    // counts start at zero. Callers keep every slot from changing while it is taken
+    public InodeTable snapshot() {
+        InodeTable copy = new InodeTable(maxDescriptors, null);
+        Page[] current = pages;
+        int last = -1;
+        for (int p = 0; p < current.length; p++) {
+            if (page(p << PAGE_SHIFT) != EMPTY) {
+                last = p;
+            }
+        }
+        if (last >= 0) {
+            copy.grow(((last + 1) << PAGE_SHIFT) - 1);
+        }
+        for (int p = 0; p <= last; p++) {
+            Page from = current[p];
+            if (from == EMPTY) {
+                continue;
+            }
+            Page to = copy.pages[p];
+            System.arraycopy(from.types, 0, to.types, 0, Settings.INODE_PAGE_SIZE);
+            System.arraycopy(from.links, 0, to.links, 0, Settings.INODE_PAGE_SIZE);
+            System.arraycopy(from.sizes, 0, to.sizes, 0, Settings.INODE_PAGE_SIZE);
+            System.arraycopy(from.parents, 0, to.parents, 0, Settings.INODE_PAGE_SIZE);
+            System.arraycopy(from.flags, 0, to.flags, 0, Settings.INODE_PAGE_SIZE);
+            for (int slot = 0; slot < Settings.INODE_PAGE_SIZE; slot++) {
+                if (from.types[slot] == FREE) {
+                    continue;
+                }
+                int id = (p << PAGE_SHIFT) | slot;
+                to.blockMaps[slot] = from.blockMaps[slot] == null ? null : from.blockMaps[slot].copy();
+                to.chunkMaps[slot] = from.chunkMaps[slot] == null ? null : from.chunkMaps[slot].copy();
+                to.linkTargets[slot] = from.linkTargets[slot];
+                copy.freeIds.reserve(id);
+            }
+        }
+        return copy;
+    }
+
+    private Page page(int id) {
+        Page page = pages[id >>> PAGE_SHIFT];
+        return page != null ? page : read(id >>> PAGE_SHIFT);
+    }
+
+    // Reads page p from the store, its free slots join the allocator
+    private synchronized Page read(int p) {
+        Page page = pages[p];
+        if (page != null) {
+            return page;
+        }
+        int first = p << PAGE_SHIFT;
+        int end = Math.min(first + Settings.INODE_PAGE_SIZE, maxDescriptors);
+        page = new Page(store, first, end);
+        boolean empty = true;
+        for (int id = first; id < end; id++) {
+            if (page.types[id & PAGE_MASK] == FREE) {
+                freeIds.release(id);
+            } else {
+                empty = false;
+            }
+        }
+        pages[p] = empty ? EMPTY : page;
+        return pages[p];
+    }
+
+    // The page of a slot that is about to be taken
+    private Page ownPage(int id) {
+        Page page = page(id);
+        if (page != EMPTY) {
+            return page;
+        }
+        synchronized (this) {
+            int p = id >>> PAGE_SHIFT;
+            if (pages[p] == EMPTY) {
+                pages[p] = new Page();
+            }
+            return pages[p];
+        }
+    }
+
+    // Adds pages until id is covered
+    private synchronized void grow(int id) {
+        Page[] current = pages;
+        int needed = (id >>> PAGE_SHIFT) + 1;
+        if (needed <= current.length) {
+            return;
+        }
+        Page[] grown = Arrays.copyOf(current, needed);
+        for (int p = current.length; p < needed; p++) {
+            grown[p] = new Page();
+        }
+        pages = grown;
+        freeIds.grow(Math.min(needed << PAGE_SHIFT, maxDescriptors));
+    }
+
+    public int getMaxDescriptors() {
+        return maxDescriptors;
+    }
+
+    // Number of slots that currently have memory behind them, every slot when the table has a store
+    public int getCapacity() {
+        return Math.min(pages.length << PAGE_SHIFT, maxDescriptors);
+    }
+
+    public DescriptorTable getStore() {
+        return store;
+    }
+
+    public boolean isUsed(int id) {
+        return id < getCapacity() && page(id).types[id & PAGE_MASK] != FREE;
+    }
+
+    // Lowest free slot, a page is added or read when all present ones are taken. Returns -1 once the volume is full
+    public synchronized int findFree() {
+        int id = freeIds.findLowest();
+        while (id == -1 && store != null) {
+            while (nextUnread < pages.length && pages[nextUnread] != null) {
+                nextUnread++;
+            }
+            if (nextUnread == pages.length) {
+                return -1;
+            }
+            read(nextUnread);
+            id = freeIds.findLowest();
+        }
+        if (id != -1) {
+            return id;
+        }
+        int capacity = getCapacity();
+        if (capacity == maxDescriptors) {
+            return -1;
+        }
+        grow(capacity);
+        return capacity;
+    }
+
+    public void allocate(int id, int parentId, int type) {
+        grow(id);
+        Page page = ownPage(id);
+        int slot = id & PAGE_MASK;
+        page.types[slot] = type;
+        page.links[slot] = 0;
+        page.sizes[slot] = 0;
+        page.parents[slot] = parentId;
+        page.flags[slot] = 0;
+        page.openCounts[slot] = 0;
+        page.blockMaps[slot] = null;
+        page.mapChains[slot] = null;
+        page.chunkMaps[slot] = null;
+        page.names[slot] = null;
+        page.paths[slot] = null;
+        page.linkTargets[slot] = null;
+        setLoaded(id, true);
+        synchronized (this) {
+            freeIds.reserve(id);
+        }
+        if (store != null) {
+            persist(id);
+            store.storeBlockMap(id, -1, 0);
+        }
+    }
+
+    // The type goes first, a view made while the slot is freed either finds it free or is removed by the new
+    // generation
+    public void free(int id) {
+        Page page = page(id);
+        int slot = id & PAGE_MASK;
+        page.types[slot] = FREE;
+        page.generations[slot]++;
+        page.parents[slot] = -1;
+        page.blockMaps[slot] = null;
+        page.mapChains[slot] = null;
+        page.chunkMaps[slot] = null;
+        page.names[slot] = null;
+        page.paths[slot] = null;
+        page.linkTargets[slot] = null;
+        setLoaded(id, false);
+        synchronized (this) {
+            freeIds.release(id);
+        }
+        if (store != null) {
+            store.remove(id);
+        }
+    }
+
+    private void persist(int id) {
+        if (store != null) {
+            Page page = page(id);
+            int slot = id & PAGE_MASK;
+            store.store(id, page.types[slot], page.links[slot], page.sizes[slot], page.parents[slot], page.flags[slot]);
+        }
+    }
+
+    // Lock of the slot, slots whose ids are equal modulo Settings.INODE_LOCK_STRIPES share it
+    public ReentrantReadWriteLock getLock(int id) {
+        return locks[getStripe(id)];
+    }
+
+    public int getStripe(int id) {
+        return id & STRIPE_MASK;
+    }
+
+    public ReentrantReadWriteLock getStripeLock(int stripe) {
+        return locks[stripe];
+    }
+
+    public int getGeneration(int id) {
+        return page(id).generations[id & PAGE_MASK];
+    }
+
+    // Whether the block map of the slot has been read from the store, set for every slot taken on this mount
+    public boolean isLoaded(int id) {
+        return (page(id).loaded.get((id & PAGE_MASK) >>> 6) & (1L << (id & 63))) != 0;
+    }
+
+    public void setLoaded(int id, boolean loaded) {
+        long bit = 1L << (id & 63);
+        page(id).loaded.accumulateAndGet((id & PAGE_MASK) >>> 6, bit, loaded ? (word, b) -> word | b : (word, b) -> word & ~b);
+    }
+
+    public int getType(int id) {
+        return page(id).types[id & PAGE_MASK];
+    }
+
+    public int getLinks(int id) {
+        return page(id).links[id & PAGE_MASK];
+    }
+
+    public void setLinks(int id, int value) {
+        page(id).links[id & PAGE_MASK] = value;
+        persist(id);
+    }
+
+    public long getSize(int id) {
+        return page(id).sizes[id & PAGE_MASK];
+    }
+
+    public void setSize(int id, long value) {
+        page(id).sizes[id & PAGE_MASK] = value;
+        persist(id);
+    }
+
+    public int getParent(int id) {
+        return page(id).parents[id & PAGE_MASK];
+    }
+
+    public void setParent(int id, int parentId) {
+        page(id).parents[id & PAGE_MASK] = parentId;
+        persist(id);
+    }
+
+    public int getOpenCount(int id) {
+        return page(id).openCounts[id & PAGE_MASK];
+    }
+
+    public void setOpenCount(int id, int value) {
+        page(id).openCounts[id & PAGE_MASK] = value;
+    }
+
+    // Creates the map of a slot that never had one, callers that change it hold the write lock of the slot
+    public ExtentMap getBlockMap(int id) {
+        Page page = page(id);
+        int slot = id & PAGE_MASK;
+        ExtentMap blockMap = page.blockMaps[slot];
+        if (blockMap == null) {
+            blockMap = new ExtentMap();
+            page.blockMaps[slot] = blockMap;
+        }
+        return blockMap;
+    }
+
+    // Null while the slot has no map, unlike getBlockMap it never creates one
+    public ExtentMap findBlockMap(int id) {
+        return page(id).blockMaps[id & PAGE_MASK];
+    }
+
+    public int getFlags(int id) {
+        return page(id).flags[id & PAGE_MASK];
+    }
+
+    // A compressed slot gets an empty chunk map, the caller makes sure no data is stored yet
+    public void setCompressed(int id, boolean compressed) {
+        Page page = page(id);
+        int slot = id & PAGE_MASK;
+        page.flags[slot] = compressed ? page.flags[slot] | COMPRESSED : page.flags[slot] & ~COMPRESSED;
+        page.chunkMaps[slot] = compressed ? new ChunkMap() : null;
+        persist(id);
+    }
+
+    public ChunkMap getChunkMap(int id) {
+        return page(id).chunkMaps[id & PAGE_MASK];
+    }
+
+    public ExtentMap getMapChain(int id) {
+        Page page = page(id);
+        int slot = id & PAGE_MASK;
+        ExtentMap chain = page.mapChains[slot];
+        if (chain == null) {
+            chain = new ExtentMap();
+            page.mapChains[slot] = chain;
+        }
+        return chain;
+    }
+
+    public ExtentMap findMapChain(int id) {
+        return page(id).mapChains[id & PAGE_MASK];
+    }
+
+    public String getName(int id) {
+        return page(id).names[id & PAGE_MASK];
+    }
+
+    public void setName(int id, String name) {
+        page(id).names[id & PAGE_MASK] = name;
+    }
+
+    public SymlinkTarget getLinkTarget(int id) {
+        return page(id).linkTargets[id & PAGE_MASK];
+    }
+
+    public void setLinkTarget(int id, SymlinkTarget target) {
+        page(id).linkTargets[id & PAGE_MASK] = target;
+    }
+
+    // Null when there is no path built in this generation
+    public String getPath(int id, long generation) {
+        CachedPath cached = page(id).paths[id & PAGE_MASK];
+        return cached != null && cached.generation() == generation ? cached.path() : null;
+    }
+
+    public void setPath(int id, String path, long generation) {
+        page(id).paths[id & PAGE_MASK] = new CachedPath(path, generation);
+    }
+}
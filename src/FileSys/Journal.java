@@ -0,0 +1,315 @@
+package FileSys;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Write-ahead log for the metadata of an image: descriptor records, directory and block map blocks, free map changes.
+// An operation runs as a transaction that remembers what it touched, its commit turns that into after-images which
+// are batched with other commits and written to the journal region in one sequential write before anything reaches
+// its home location. A group still found in the journal on mount is applied again, so an operation interrupted by
+// a crash is either fully on the image or not at all
+public class Journal {
+    private static final int MAGIC = 0x4A524E4C;
+    // Header - [magic][payload length][payload checksum][transaction count]
+    private static final int HEADER_SIZE = 16;
+
+    // Entry - [type][descriptor id, record] | [type][block id, block] | [type][first block, length]
+    private static final byte DESCRIPTOR = 1;
+    private static final byte BLOCK = 2;
+    private static final byte ALLOCATE = 3;
+    private static final byte FREE = 4;
+
+    private final VolumeImage image;
+    private final ByteBuffer region;
+    private final long regionOffset;
+    private final ByteBuffer homeTable;
+    private final FreeSpaceMap homeFreeMap;
+    private final int blockSize;
+    private final int capacity;
+
+    // Working copies that transactions change, after-images are taken from them
+    private DescriptorTable table;
+    private BlockDevice device;
+    private BufferCache cache;
+
+    private final ThreadLocal<Transaction> current = new ThreadLocal<>();
+    private final Object pendingLock = new Object();
+    private final ByteBuffer pending;
+    private int pendingTransactions = 0;
+    // Held while a group goes to the journal and then home, only one group is ever in the region
+    private final Object flushLock = new Object();
+    private ScheduledExecutorService flusher;
+
+    private long commits = 0;
+    private long groups = 0;
+
+    private static class Transaction {
+        private int depth = 1;
+        private final Set<Integer> descriptors = new LinkedHashSet<>();
+        private final Set<Integer> blocks = new LinkedHashSet<>();
+        private final List<int[]> allocations = new ArrayList<>();
+        private final List<int[]> frees = new ArrayList<>();
+        private final List<Runnable> deferred = new ArrayList<>();
+    }
+
+    public Journal(VolumeImage image, ByteBuffer region, long regionOffset, ByteBuffer homeTable, FreeSpaceMap homeFreeMap) {
+        this.image = image;
+        this.region = region;
+        this.regionOffset = regionOffset;
+        this.homeTable = homeTable;
+        this.homeFreeMap = homeFreeMap;
+        this.blockSize = image.getBlockSize();
+        this.capacity = region.capacity() - HEADER_SIZE;
+        this.pending = ByteBuffer.allocate(capacity);
+    }
+
+    // Connects the journal to the structures the file system works with and starts the periodic group commit
+    public void attach(BlockDevice device, DescriptorTable table) {
+        this.device = device;
+        this.table = table;
+        if (device instanceof BufferCache bufferCache) {
+            this.cache = bufferCache;
+            bufferCache.setJournal(this);
+        }
+        table.setJournal(this);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, Settings.JOURNAL_COMMIT_INTERVAL, Settings.JOURNAL_COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // Transactions nest, everything up to the outermost commit is one atomic operation
+    public void begin() {
+        Transaction transaction = current.get();
+        if (transaction != null) {
+            transaction.depth++;
+        } else {
+            current.set(new Transaction());
+        }
+    }
+
+    public void commit() {
+        Transaction transaction = current.get();
+        if (--transaction.depth > 0) {
+            return;
+        }
+        current.remove();
+        if (!transaction.descriptors.isEmpty() || !transaction.blocks.isEmpty()
+                || !transaction.allocations.isEmpty() || !transaction.frees.isEmpty()) {
+            append(serialize(transaction));
+        }
+        if (cache != null) {
+            for (int blockId : transaction.blocks) {
+                cache.markLogged(blockId);
+                cache.unpin(blockId);
+            }
+        }
+        // Freed blocks only become reusable once the free is logged, so a later allocation can't be replayed first
+        for (Runnable free : transaction.deferred) {
+            free.run();
+        }
+    }
+
+    public void logDescriptor(int id) {
+        begin();
+        current.get().descriptors.add(id);
+        commit();
+    }
+
+    // Must be called before the block is changed, it stays in memory until the transaction commits
+    public void logBlock(int blockId) {
+        Transaction transaction = current.get();
+        if (transaction.blocks.add(blockId) && cache != null) {
+            cache.pin(blockId);
+        }
+    }
+
+    public void logAllocation(int start, int length) {
+        begin();
+        current.get().allocations.add(new int[]{start, length});
+        commit();
+    }
+
+    // Logs the free and runs it on commit
+    public void free(int start, int length, Runnable free) {
+        begin();
+        Transaction transaction = current.get();
+        transaction.frees.add(new int[]{start, length});
+        transaction.deferred.add(free);
+        commit();
+    }
+
+    private byte[] serialize(Transaction transaction) {
+        int size = (Byte.BYTES + Integer.BYTES) * (transaction.descriptors.size() + transaction.blocks.size())
+                + transaction.descriptors.size() * DescriptorTable.RECORD_SIZE
+                + transaction.blocks.size() * blockSize
+                + (Byte.BYTES + 2 * Integer.BYTES) * (transaction.allocations.size() + transaction.frees.size());
+        ByteBuffer record = ByteBuffer.allocate(size);
+        for (int id : transaction.descriptors) {
+            record.put(DESCRIPTOR).putInt(id);
+            table.copyRecord(id, record);
+        }
+        for (int blockId : transaction.blocks) {
+            record.put(BLOCK).putInt(blockId);
+            device.read(blockId, 0, record, blockSize);
+        }
+        for (int[] allocation : transaction.allocations) {
+            record.put(ALLOCATE).putInt(allocation[0]).putInt(allocation[1]);
+        }
+        for (int[] free : transaction.frees) {
+            record.put(FREE).putInt(free[0]).putInt(free[1]);
+        }
+        return record.array();
+    }
+
+    private void append(byte[] record) {
+        if (record.length > capacity) {
+            // Can't be made atomic, written home directly so at least nothing is lost
+            Log.warn(() -> "Transaction of " + record.length + " bytes exceeds the journal, applying it unlogged");
+            flush();
+            synchronized (flushLock) {
+                apply(ByteBuffer.wrap(record));
+                image.flush();
+            }
+            return;
+        }
+        boolean full;
+        while (true) {
+            synchronized (pendingLock) {
+                if (pending.remaining() >= record.length) {
+                    pending.put(record);
+                    pendingTransactions++;
+                    commits++;
+                    full = pending.position() >= Settings.JOURNAL_GROUP_BLOCKS * blockSize;
+                    break;
+                }
+            }
+            flush();
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    // Writes every committed transaction to the journal as one group, then copies it home
+    public void flush() {
+        synchronized (flushLock) {
+            byte[] group;
+            int transactions;
+            synchronized (pendingLock) {
+                if (pendingTransactions == 0) {
+                    return;
+                }
+                group = Arrays.copyOf(pending.array(), pending.position());
+                transactions = pendingTransactions;
+                pending.clear();
+                pendingTransactions = 0;
+                groups++;
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(group);
+            region.put(HEADER_SIZE, group);
+            region.putInt(4, group.length).putInt(8, (int) checksum.getValue()).putInt(12, transactions);
+            region.putInt(0, MAGIC);
+            image.force(regionOffset, HEADER_SIZE + group.length);
+
+            apply(ByteBuffer.wrap(group));
+            image.flush();
+            region.putInt(0, 0);
+        }
+    }
+
+    // Applies a group left by an interrupted flush, returns the amount of transactions it held
+    public int replay() {
+        if (region.getInt(0) != MAGIC) {
+            return 0;
+        }
+        int length = region.getInt(4);
+        if (length < 0 || length > capacity) {
+            return 0;
+        }
+        byte[] group = new byte[length];
+        region.get(HEADER_SIZE, group);
+        CRC32 checksum = new CRC32();
+        checksum.update(group);
+        // A torn group never got its home writes started, so it is simply dropped
+        if ((int) checksum.getValue() != region.getInt(8)) {
+            region.putInt(0, 0);
+            return 0;
+        }
+        apply(ByteBuffer.wrap(group));
+        image.flush();
+        region.putInt(0, 0);
+        image.force(regionOffset, HEADER_SIZE);
+        return region.getInt(12);
+    }
+
+    private void apply(ByteBuffer group) {
+        // A block image followed by a free of that block is skipped, the block may already hold unlogged file data
+        Map<Integer, Integer> lastFree = new HashMap<>();
+        List<Integer> entries = new ArrayList<>();
+        while (group.hasRemaining()) {
+            int position = group.position();
+            entries.add(position);
+            byte type = group.get();
+            int first = group.getInt();
+            switch (type) {
+                case DESCRIPTOR -> group.position(group.position() + DescriptorTable.RECORD_SIZE);
+                case BLOCK -> group.position(group.position() + blockSize);
+                case FREE -> {
+                    int length = group.getInt();
+                    for (int blockId = first; blockId < first + length; blockId++) {
+                        lastFree.put(blockId, position);
+                    }
+                }
+                default -> group.getInt();
+            }
+        }
+        for (int position : entries) {
+            group.position(position);
+            byte type = group.get();
+            int first = group.getInt();
+            switch (type) {
+                case DESCRIPTOR -> homeTable.put(first * DescriptorTable.RECORD_SIZE, group, group.position(), DescriptorTable.RECORD_SIZE);
+                case BLOCK -> {
+                    if (lastFree.getOrDefault(first, -1) < position) {
+                        image.write(first, 0, group, blockSize);
+                    }
+                }
+                case ALLOCATE -> homeFreeMap.markUsed(first, group.getInt());
+                case FREE -> homeFreeMap.free(first, group.getInt());
+            }
+        }
+    }
+
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+    }
+
+    public long getCommits() {
+        synchronized (pendingLock) {
+            return commits;
+        }
+    }
+
+    public long getGroups() {
+        synchronized (pendingLock) {
+            return groups;
+        }
+    }
+}
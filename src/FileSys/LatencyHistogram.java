@@ -0,0 +1,86 @@
+package FileSys;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latencies in nanoseconds counted in power-of-two buckets, bucket i holds values in [2^(i-1), 2^i).
+// Recording is a few adds on striped counters, so threads don't contend on it
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final String name;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    private final LongAdder errors = new LongAdder();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Returns the start time to pass to record
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void record(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        recordValue(elapsed);
+        OperationEvent.emit(name, elapsed);
+    }
+
+    public void recordValue(long nanos) {
+        buckets[BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 0))].increment();
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    public HistogramSnapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            sum += counts[i];
+        }
+        long maxNanos = max.get();
+        return new HistogramSnapshot(name, sum, total.sum(), maxNanos, errors.sum(),
+                Math.min(percentile(counts, sum, 0.5), maxNanos), Math.min(percentile(counts, sum, 0.9), maxNanos),
+                Math.min(percentile(counts, sum, 0.99), maxNanos));
+    }
+
+    // Upper bound of the bucket the percentile falls in
+    private static long percentile(long[] counts, long sum, double fraction) {
+        if (sum == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(sum * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : (1L << Math.min(i, 62)) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        total.reset();
+        max.reset();
+        errors.reset();
+    }
+}
@@ -0,0 +1,5 @@
+package FileSys;
+
+// Directory entry as ls shows it
+public record ListEntry(String name, int id, String fileType) {
+}
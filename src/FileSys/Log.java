@@ -0,0 +1,80 @@
+package FileSys;
+
+import java.util.Locale;
+import java.util.function.Supplier;
+
+// Leveled messages of the file system. A disabled level costs one comparison, messages built from
+// several parts are passed as suppliers so they are only formatted when they are printed
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    // Chosen with -Dfilesys.log=<level>, the interactive shell lowers the default to info
+    private static volatile Level level = parse(System.getProperty("filesys.log", Settings.LOG_LEVEL));
+
+    private Log() {
+    }
+
+    public static Level parse(String name) {
+        return Level.valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    public static boolean isConfigured() {
+        return System.getProperty("filesys.log") != null;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.ordinal() >= level.ordinal();
+    }
+
+    private static void print(Level messageLevel, String message) {
+        if (messageLevel.ordinal() >= Level.WARN.ordinal() && level == Level.DEBUG) {
+            System.out.println("[" + messageLevel + "] " + message);
+        } else {
+            System.out.println(message);
+        }
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            print(Level.DEBUG, message.get());
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            print(Level.INFO, message);
+        }
+    }
+
+    public static void info(Supplier<String> message) {
+        if (isEnabled(Level.INFO)) {
+            print(Level.INFO, message.get());
+        }
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            print(Level.WARN, message);
+        }
+    }
+
+    public static void warn(Supplier<String> message) {
+        if (isEnabled(Level.WARN)) {
+            print(Level.WARN, message.get());
+        }
+    }
+
+    public static void error(String message) {
+        if (isEnabled(Level.ERROR)) {
+            print(Level.ERROR, message);
+        }
+    }
+}
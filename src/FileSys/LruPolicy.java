@@ -0,0 +1,31 @@
+package FileSys;
+
+import java.util.function.IntPredicate;
+
+public class LruPolicy implements EvictionPolicy {
+    private final FrameList recency;
+
+    public LruPolicy(int frames) {
+        this.recency = new FrameList(frames);
+    }
+
+    @Override
+    public void inserted(int frame, int blockId) {
+        recency.addFirst(frame);
+    }
+
+    @Override
+    public void accessed(int frame) {
+        recency.moveToFront(frame);
+    }
+
+    @Override
+    public void removed(int frame) {
+        recency.remove(frame);
+    }
+
+    @Override
+    public int victim(IntPredicate evictable) {
+        return recency.lastMatching(evictable);
+    }
+}
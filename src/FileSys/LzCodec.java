@@ -0,0 +1,144 @@
+package FileSys;
+
+// LZ77 codec laid out like LZ4 blocks: sequences of [token][literal lengths][literals][offset][match lengths].
+// The high nibble of the token is the literal count and the low one the match length minus MIN_MATCH, 15 means
+// more length bytes follow, each 255 until the last. Matches are found through a hash of the next four bytes with
+// one candidate per hash, and the search skips ahead faster the longer it finds nothing, so data that doesn't
+// compress costs little. The last sequence only has literals
+public final class LzCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int SKIP_SHIFT = 5;
+
+    private LzCodec() {
+    }
+
+    // Compresses src[0, length) into dst, returns the compressed length or -1 when it would be longer than limit
+    public static int compress(byte[] src, int length, byte[] dst, int limit) {
+        // Positions are stored plus one, so the zeroed table is empty
+        int[] table = new int[1 << HASH_BITS];
+        int anchor = 0;
+        int in = 0;
+        int out = 0;
+        int misses = 0;
+        while (in <= length - MIN_MATCH) {
+            int sequence = readInt(src, in);
+            int hash = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int candidate = table[hash] - 1;
+            table[hash] = in + 1;
+            if (candidate < 0 || in - candidate > MAX_OFFSET || readInt(src, candidate) != sequence) {
+                in += 1 + (misses++ >>> SKIP_SHIFT);
+                continue;
+            }
+            misses = 0;
+            int matchLength = MIN_MATCH;
+            while (in + matchLength < length && src[candidate + matchLength] == src[in + matchLength]) {
+                matchLength++;
+            }
+            // The bytes before the match may repeat too, they are taken from the pending literals
+            while (in > anchor && candidate > 0 && src[in - 1] == src[candidate - 1]) {
+                in--;
+                candidate--;
+                matchLength++;
+            }
+            out = writeSequence(src, anchor, in - anchor, in - candidate, matchLength, dst, out, limit);
+            if (out < 0) {
+                return -1;
+            }
+            in += matchLength;
+            anchor = in;
+        }
+        if (anchor < length) {
+            out = writeSequence(src, anchor, length - anchor, 0, 0, dst, out, limit);
+        }
+        return out;
+    }
+
+    // Writes one sequence at out, a match length of zero writes literals only. Returns the new end or -1
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset, int matchLength,
+                                     byte[] dst, int out, int limit) {
+        int needed = 1 + literalLength / 255 + 1 + literalLength + (matchLength == 0 ? 0 : 2 + (matchLength - MIN_MATCH) / 255 + 1);
+        if (out + needed > limit) {
+            return -1;
+        }
+        int token = out++;
+        int high = Math.min(literalLength, 15);
+        out = writeLength(dst, out, literalLength - 15);
+        System.arraycopy(src, literalStart, dst, out, literalLength);
+        out += literalLength;
+        if (matchLength == 0) {
+            dst[token] = (byte) (high << 4);
+            return out;
+        }
+        dst[out++] = (byte) offset;
+        dst[out++] = (byte) (offset >>> 8);
+        int low = Math.min(matchLength - MIN_MATCH, 15);
+        out = writeLength(dst, out, matchLength - MIN_MATCH - 15);
+        dst[token] = (byte) ((high << 4) | low);
+        return out;
+    }
+
+    // Extra length bytes, only written when the nibble overflowed
+    private static int writeLength(byte[] dst, int out, int remaining) {
+        if (remaining < 0) {
+            return out;
+        }
+        while (remaining >= 255) {
+            dst[out++] = (byte) 255;
+            remaining -= 255;
+        }
+        dst[out++] = (byte) remaining;
+        return out;
+    }
+
+    // Decompresses src[0, length) into dst, returns the number of bytes written
+    public static int decompress(byte[] src, int length, byte[] dst) {
+        int in = 0;
+        int out = 0;
+        while (in < length) {
+            int token = src[in++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int next;
+                do {
+                    next = src[in++] & 0xFF;
+                    literalLength += next;
+                } while (next == 255);
+            }
+            System.arraycopy(src, in, dst, out, literalLength);
+            in += literalLength;
+            out += literalLength;
+            if (in >= length) {
+                break;
+            }
+            int offset = (src[in++] & 0xFF) | (src[in++] & 0xFF) << 8;
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int next;
+                do {
+                    next = src[in++] & 0xFF;
+                    matchLength += next;
+                } while (next == 255);
+            }
+            matchLength += MIN_MATCH;
+            int from = out - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, from, dst, out, matchLength);
+            } else {
+                // The match overlaps what it produces, a repeated pattern. Every copy doubles the bytes that are ready
+                for (int copied = 0; copied < matchLength; ) {
+                    int run = Math.min(out + copied - from, matchLength - copied);
+                    System.arraycopy(dst, from, dst, out + copied, run);
+                    copied += run;
+                }
+            }
+            out += matchLength;
+        }
+        return out;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8 | (data[offset + 2] & 0xFF) << 16 | data[offset + 3] << 24;
+    }
+}
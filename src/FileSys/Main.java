@@ -1,206 +1,127 @@
 package FileSys;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Scanner;
 
+// Usage:
+//   Main [image [blockSize blockCount]]                            - interactive terminal
+//   Main --batch <script|-> [image [blockSize blockCount]]         - replay a script or stdin and print a report
+//   Main --generate <operations> [create:write:read:unlink] [seed] - write a synthetic script to stdout
 public class Main {
-    public static void main(String[] args) throws WrongTypeException, PathResolutionException {
-        FileManager fileManager = new FileManager();
-        Scanner scanner = new Scanner(System.in);
-        String input;
-
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--generate")) {
+            generate(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            if (args.length < 2) {
+                System.out.println("Usage: --batch <script|-> [image [blockSize blockCount]]");
+                return;
+            }
+            batch(args[1], Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
+        // The shell reports every operation unless a level was chosen with -Dfilesys.log
+        if (!Log.isConfigured()) {
+            Log.setLevel(Log.Level.INFO);
+        }
         System.out.println("Welcome to the Filesystem");
         System.out.println("Type 'help' to see available commands");
+        FileManager fileManager = openVolume(args, true);
+        Shell shell = new Shell(fileManager, false);
+        Scanner scanner = new Scanner(System.in);
 
-        fileManager.createFile("test");
-        System.out.println("truncating");
-        fileManager.truncate("test", 80);
-        fileManager.mkdir("dir");
-//        fileManager.mkdir("dir/dir2");
-//        fileManager.cd("dir");
-
+        // The path only changes with cd, rmdir and renames, it isn't rebuilt for every prompt
+        String prompt = prompt(fileManager);
         while (true) {
-            String nameCWD = fileManager.getPathString();
-            System.out.print(nameCWD + " > ");
-            input = scanner.nextLine().trim();
+            System.out.print(prompt + " > ");
+            if (!scanner.hasNextLine()) {
+                break;
+            }
+            String input = scanner.nextLine().trim();
 
             if (input.equalsIgnoreCase("exit")) {
                 System.out.println("Exiting...");
                 break;
             }
+            shell.execute(input);
+            if (input.startsWith("cd") || input.startsWith("rmdir") || input.startsWith("mv") || input.startsWith("rename")) {
+                prompt = prompt(fileManager);
+            }
+        }
+        scanner.close();
+        fileManager.close();
+    }
 
-            String[] tokens = input.split("\\s+");
-            if (tokens.length == 0) continue;
-
-            String command = tokens[0];
-
-            switch (command.toLowerCase()) {
-                case "help":
-                    System.out.println("Available commands:");
-                    System.out.println("  create <fileName>             - Create a new file");
-                    System.out.println("  ls                            - List all files");
-                    System.out.println("  link <existingFile> <newFile> - Create a new name for an existing file");
-                    System.out.println("  unlink <fileName>             - Remove a file name");
-                    System.out.println("  truncate <fileName> <size>    - Change file size");
-                    System.out.println("  open <fileName>               - Open a file and return fd");
-                    System.out.println("  close <fd>                    - Close an open file");
-                    System.out.println("  seek <fd> <offset>            - Move the read/write pointer in an open file");
-                    System.out.println("  read <fd> <size>              - Read data from file of given size");
-                    System.out.println("  write <fd> <data>             - Write data to file at current pointer position");
-                    System.out.println("  stat <filename>               - Display file descriptor information");
-                    System.out.println("  mkdir <directoryName>         - Create a new directory");
-                    System.out.println("  rmdir <directoryName>         - Remove directory");
-                    System.out.println("  cd <directoryName>            - Change working directory");
-                    System.out.println("  symlink <path> <name>         - Create symbolic link that leads to <path>");
-                    System.out.println("  exit                          - Exit the terminal");
-                    break;
-
-                case "create":
-                    if (tokens.length < 2) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        fileManager.createFile(tokens[1]);
-                    }
-                    break;
-
-                case "ls":
-                    fileManager.ls();
-                    break;
-
-                case "link":
-                    if (tokens.length < 3) {
-                        System.out.println("Invalid arguments. Type 'help' to see available commands.");
-                    } else {
-                        fileManager.link(tokens[1], tokens[2]);
-                    }
-                    break;
-
-                case "unlink":
-                    if (tokens.length < 2) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        fileManager.unlink(tokens[1]);
-                    }
-                    break;
-
-                case "truncate":
-                    if (tokens.length < 3) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        try {
-                            int size = Integer.parseInt(tokens[2]);
-                            fileManager.truncate(tokens[1], size);
-                        } catch (NumberFormatException e) {
-                            System.out.println("Size argument should be a number.");
-                        }
-                    }
-                    break;
-
-                case "seek":
-                    if (tokens.length < 3) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        try {
-                            int fd = Integer.parseInt(tokens[1]);
-                            int offset = Integer.parseInt(tokens[2]);
-                            fileManager.seek(fd, offset);
-                        } catch (NumberFormatException e) {
-                            System.out.println("Argument should be a number.");
-                        }
-                    }
-                    break;
-
-                case "open":
-                    if (tokens.length < 2) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        fileManager.open(tokens[1]);
-                    }
-                    break;
-
-                case "close":
-                    if (tokens.length < 2) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        try {
-                            int fd = Integer.parseInt(tokens[1]);
-                            fileManager.close(fd);
-                        } catch (NumberFormatException e) {
-                            System.out.println("fd should be a number.");
-                        }
-                    }
-                    break;
-
-                case "read":
-                    if (tokens.length < 3) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        try {
-                            int fd = Integer.parseInt(tokens[1]);
-                            int size = Integer.parseInt(tokens[2]);
-                            fileManager.read(fd, size);
-                        } catch (NumberFormatException e) {
-                            System.out.println("Argument should be a number.");
-                        }
-                    }
-                    break;
-
-                case "write":
-                    if (tokens.length < 3) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        try {
-                            int fd = Integer.parseInt(tokens[1]);
-                            fileManager.write(fd, tokens[2]);
-                        } catch (NumberFormatException e) {
-                            System.out.println("fd should be a number.");
-                        }
-                    }
-                    break;
-
-                case "stat":
-                    if (tokens.length < 2) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        fileManager.stat(tokens[1]);
-                    }
-                    break;
-
-                case "mkdir":
-                    if (tokens.length < 2) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        fileManager.mkdir(tokens[1]);
-                    }
-                    break;
-
-                case "rmdir":
-                    if (tokens.length < 2) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        fileManager.rmdir(tokens[1]);
-                    }
-                    break;
+    private static String prompt(FileManager fileManager) {
+        try {
+            return fileManager.getPathString();
+        } catch (WrongTypeException | PathResolutionException e) {
+            return "?";
+        }
+    }
 
-                case "cd":
-                    if (tokens.length < 2) {
-                        System.out.println("Invalid argument. Type 'help' to see available commands.");
-                    } else {
-                        fileManager.cd(tokens[1]);
-                    }
-                    break;
+    // With an image path the volume is mounted (or formatted if the file doesn't exist yet),
+    // a new image takes its block size and block count from the next arguments
+    private static FileManager openVolume(String[] args, boolean verbose) throws IOException {
+        if (args.length == 0) {
+            return new FileManager();
+        }
+        if (Files.exists(Path.of(args[0]))) {
+            FileManager fileManager = FileManager.mount(args[0]);
+            if (verbose) {
+                System.out.println("Mounted volume image '" + args[0] + "'");
+            }
+            return fileManager;
+        }
+        VolumeConfig config = VolumeConfig.defaults();
+        if (args.length > 1) {
+            config = config.withBlockSize(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            config = config.withBlockCount(Long.parseLong(args[2]));
+        }
+        FileManager fileManager = FileManager.format(args[0], config);
+        if (verbose) {
+            System.out.println("Formatted volume image '" + args[0] + "' with " + config.blockCount() + " blocks of "
+                    + config.blockSize() + " bytes");
+        }
+        return fileManager;
+    }
 
-                case "symlink":
-                    if (tokens.length < 3) {
-                        System.out.println("Invalid arguments. Type 'help' to see available commands.");
-                    } else {
-                        fileManager.createSymLink(tokens[1], tokens[2]);
-                    }
-                    break;
+    private static void batch(String script, String[] volumeArgs) throws IOException {
+        // Failed commands are counted in the report instead of printed
+        if (!Log.isConfigured()) {
+            Log.setLevel(Log.Level.OFF);
+        }
+        FileManager fileManager = openVolume(volumeArgs, false);
+        BatchReport report;
+        try (Reader reader = script.equals("-")
+                ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                : Files.newBufferedReader(Path.of(script), StandardCharsets.UTF_8)) {
+            report = new BatchRunner(fileManager).run(reader);
+        } finally {
+            fileManager.close();
+        }
+        System.out.print(report);
+    }
 
-                default:
-                    System.out.println("Unknown command. Type 'help' to see available commands.");
-            }
+    private static void generate(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: --generate <operations> [create:write:read:unlink] [seed]");
+            return;
         }
-        scanner.close();
+        long operations = Long.parseLong(args[1]);
+        String mix = args.length > 2 ? args[2] : "1:4:4:1";
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        PrintStream out = new PrintStream(System.out, false, StandardCharsets.UTF_8);
+        TraceGenerator.parse(mix, seed).generate(operations, out);
     }
-}
\ No newline at end of file
+}
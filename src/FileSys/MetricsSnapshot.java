@@ -0,0 +1,14 @@
+package FileSys;
+
+import java.util.Map;
+
+public record MetricsSnapshot(long timestampMillis, Map<String, Long> counters, Map<String, HistogramSnapshot> timers) {
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        timers.values().stream().filter(timer -> timer.count() > 0 || timer.errors() > 0)
+                .forEach(timer -> result.append(timer).append('\n'));
+        counters.forEach((name, value) -> result.append(String.format("%-24s %d%n", name, value)));
+        return result.toString();
+    }
+}
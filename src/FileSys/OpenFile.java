@@ -0,0 +1,49 @@
+package FileSys;
+
+public class OpenFile {
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+
+    private final Descriptor descriptor;
+    private final int flags;
+    private long offset = 0;
+
+    public OpenFile(Descriptor descriptor, int flags) {
+        this.descriptor = descriptor;
+        this.flags = flags;
+    }
+
+    public Descriptor getDescriptor() {
+        return descriptor;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean canRead() {
+        return (flags & READ) != 0;
+    }
+
+    public boolean canWrite() {
+        return (flags & WRITE) != 0;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        if (offset < 0 || offset > descriptor.getFileSize()) {
+            Log.warn(() -> "Offset out of bounds\n" +
+                    "Requested offset: " + offset +"\n" +
+                    "Space available: " + descriptor.getFileSize());
+            return;
+        }
+        this.offset = offset;
+    }
+
+    public void advance(int length) {
+        offset += length;
+    }
+}
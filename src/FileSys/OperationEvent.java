@@ -0,0 +1,34 @@
+package FileSys;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// One file system operation in a JFR recording, only committed while a recording has the event enabled
+@Name("FileSys.Operation")
+@Label("File System Operation")
+@Category("FileSys")
+@StackTrace(false)
+public class OperationEvent extends Event {
+    private static final OperationEvent PROBE = new OperationEvent();
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+
+    public static void emit(String operation, long latency) {
+        if (!PROBE.isEnabled()) {
+            return;
+        }
+        OperationEvent event = new OperationEvent();
+        event.operation = operation;
+        event.latency = latency;
+        event.commit();
+    }
+}
@@ -0,0 +1,7 @@
+package FileSys;
+
+public class OperationFailedException extends Throwable {
+    public OperationFailedException(String msg) {
+        super(msg);
+    }
+}
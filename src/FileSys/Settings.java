@@ -1,8 +1,40 @@
 package FileSys;
 
 public class Settings {
-    public static final int BLOCK_SIZE = 32;
-    public static final int MAX_BLOCKS = 1024;
-    public static final int MAX_DESCRIPTORS = 16;
-    public static final int DIR_DEFAULT_SIZE = 32;
+    // Geometry of volumes formatted without an explicit VolumeConfig
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+    public static final long DEFAULT_BLOCK_COUNT = 1024;
+    public static final int DEFAULT_MAX_DESCRIPTORS = 4096;
+    // The inode table grows by pages of this many descriptors, up to the maximum of the volume
+    public static final int INODE_PAGE_SIZE = 1024;
+    // Descriptors share this many read-write locks, a power of two. Descriptor i uses lock i mod the count
+    public static final int INODE_LOCK_STRIPES = 256;
+    public static final int MAX_OPEN_FILES = 1024;
+    // Directories are extendible hashes of buckets of this many bytes, the bucket table of one directory
+    // has at most 2^DIR_MAX_DEPTH slots
+    public static final int DIR_BUCKET_SIZE = 512;
+    public static final int DIR_MAX_DEPTH = 24;
+    public static final int DENTRY_CACHE_SIZE = 1024;
+    // Compressed files are compressed in chunks of this many blocks, a random read decompresses one chunk
+    public static final int COMPRESSION_CHUNK_BLOCKS = 8;
+    // Symbolic links followed while resolving one path, like the limit of Linux. A longer chain is taken for a loop
+    public static final int MAX_SYMLINKS = 40;
+    public static final int MAX_SYMLINK_LENGTH = 1024;
+    // Memory budget of the block cache of image-backed volumes, in bytes
+    public static final int BUFFER_CACHE_SIZE = 4 * 1024 * 1024;
+    // lru, clock or 2q
+    public static final String BUFFER_CACHE_POLICY = "2q";
+    // Size of the journal region of new images in blocks, one group of commits has to fit in it
+    public static final int JOURNAL_BLOCKS = 256;
+    // A group is written once it holds this many blocks worth of entries or the interval (in ms) runs out
+    public static final int JOURNAL_GROUP_BLOCKS = 64;
+    public static final int JOURNAL_COMMIT_INTERVAL = 100;
+    // Blocks left behind by snapshots of a crashed mount are freed in transactions of at most this many runs
+    public static final int RECLAIM_RUNS_PER_TRANSACTION = 1024;
+    // Requests of the async facade that may be queued or running at once, submitting more waits for a slot
+    public static final int ASYNC_MAX_IN_FLIGHT = 1024;
+    // Adjacent reads of one file are merged into a single read of at most this many bytes
+    public static final int ASYNC_MAX_COALESCED_READ = 1024 * 1024;
+    // debug, info, warn, error or off, overridden with -Dfilesys.log
+    public static final String LOG_LEVEL = "warn";
 }
@@ -0,0 +1,272 @@
+package FileSys;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+// Commands of the interactive terminal and of batch scripts. Lines are split on spaces and tabs by hand
+// into a reused token array, so a script of millions of lines doesn't run a regex for every one of them.
+// A quiet shell prints nothing itself, read results stay in its buffer
+public class Shell {
+    public static final int MAX_TOKENS = 8;
+
+    private final FileManager fileManager;
+    private final boolean quiet;
+    private final String[] tokens = new String[MAX_TOKENS];
+    private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+
+    public Shell(FileManager fileManager, boolean quiet) {
+        this.fileManager = fileManager;
+        this.quiet = quiet;
+    }
+
+    public FileManager getFileManager() {
+        return fileManager;
+    }
+
+    // Splits the line into tokens, words past the end of the array are dropped. Returns the number of tokens
+    public static int tokenize(String line, String[] tokens) {
+        int count = 0;
+        int length = line.length();
+        int i = 0;
+        while (i < length && count < tokens.length) {
+            while (i < length && isBlank(line.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && !isBlank(line.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                tokens[count++] = line.substring(start, i);
+            }
+        }
+        return count;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    // Runs one line, returns false when the command is unknown, malformed or fails
+    public boolean execute(String line) {
+        int count = tokenize(line, tokens);
+        return count == 0 || execute(tokens, count);
+    }
+
+    public boolean execute(String[] tokens, int count) {
+        try {
+            return switch (tokens[0].toLowerCase()) {
+                case "help" -> help();
+                case "create" -> count >= 2 ? fileManager.createFile(tokens[1]) : invalid();
+                case "ls" -> ls();
+                case "link" -> count >= 3 ? fileManager.link(tokens[1], tokens[2]) : invalid();
+                case "unlink" -> count >= 2 ? fileManager.unlink(tokens[1]) : invalid();
+                case "rename", "mv" -> count >= 3 ? fileManager.rename(tokens[1], tokens[2]) : invalid();
+                case "truncate" -> count >= 3 ? fileManager.truncate(tokens[1], Long.parseLong(tokens[2])) : invalid();
+                case "seek" -> count >= 3 ? fileManager.seek(Integer.parseInt(tokens[1]), Long.parseLong(tokens[2])) : invalid();
+                case "open" -> count >= 2 ? fileManager.open(tokens[1], count > 2 ? parseFlags(tokens[2]) : OpenFile.READ | OpenFile.WRITE) != -1 : invalid();
+                case "close" -> count >= 2 ? fileManager.close(Integer.parseInt(tokens[1])) : invalid();
+                case "read" -> count >= 3 ? read(Integer.parseInt(tokens[1]), -1, Integer.parseInt(tokens[2])) : invalid();
+                case "write" -> count >= 3 ? fileManager.write(Integer.parseInt(tokens[1]), encode(tokens[2])) != -1 : invalid();
+                case "pread" -> count >= 4 ? read(Integer.parseInt(tokens[1]), Long.parseLong(tokens[2]), Integer.parseInt(tokens[3])) : invalid();
+                case "pwrite" -> count >= 4 ? fileManager.pwrite(Integer.parseInt(tokens[1]), Long.parseLong(tokens[2]), encode(tokens[3])) != -1 : invalid();
+                case "punch" -> count >= 4 ? fileManager.punchHole(tokens[1], Long.parseLong(tokens[2]), Long.parseLong(tokens[3])) : invalid();
+                case "stat" -> count >= 2 ? stat(tokens[1]) : invalid();
+                case "mkdir" -> count >= 2 ? fileManager.mkdir(tokens[1]) : invalid();
+                case "rmdir" -> count >= 2 ? fileManager.rmdir(tokens[1]) : invalid();
+                case "cd" -> count >= 2 ? fileManager.cd(tokens[1]) : invalid();
+                case "pwd" -> pwd();
+                case "realpath" -> count >= 2 ? realpath(tokens[1]) : invalid();
+                case "symlink" -> count >= 3 ? fileManager.createSymLink(tokens[1], tokens[2]) : invalid();
+                case "compress" -> count >= 2 ? fileManager.setCompression(tokens[1], count < 3 || !tokens[2].equalsIgnoreCase("off")) : invalid();
+                case "snapshot" -> count >= 2 ? fileManager.createSnapshot(tokens[1]) : invalid();
+                case "snapshots" -> snapshots();
+                case "rmsnapshot" -> count >= 2 ? fileManager.deleteSnapshot(tokens[1]) : invalid();
+                case "cachestat" -> cacheStat();
+                case "metrics" -> metrics();
+                default -> {
+                    print("Unknown command. Type 'help' to see available commands.");
+                    yield false;
+                }
+            };
+        } catch (NumberFormatException e) {
+            print("Argument should be a number.");
+            return false;
+        }
+    }
+
+    private static int parseFlags(String mode) {
+        return (mode.contains("r") ? OpenFile.READ : 0) | (mode.contains("w") ? OpenFile.WRITE : 0);
+    }
+
+    private static ByteBuffer encode(String data) {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A negative position reads at the offset of the open file
+    private boolean read(int fd, long position, int size) {
+        if (size < 0) {
+            print("Size should not be negative.");
+            return false;
+        }
+        if (readBuffer.capacity() < size) {
+            readBuffer = ByteBuffer.allocate(size);
+        }
+        readBuffer.clear().limit(size);
+        int length = position < 0 ? fileManager.read(fd, readBuffer) : fileManager.pread(fd, position, readBuffer);
+        if (length < 0) {
+            return false;
+        }
+        if (!quiet) {
+            System.out.println(new String(readBuffer.array(), 0, length, StandardCharsets.UTF_8));
+        }
+        return true;
+    }
+
+    private boolean pwd() {
+        try {
+            print(fileManager.getPathString());
+            return true;
+        } catch (WrongTypeException | PathResolutionException e) {
+            print(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean realpath(String path) {
+        try {
+            String resolved = fileManager.realpath(path);
+            print(resolved);
+            return true;
+        } catch (PathResolutionException e) {
+            print(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean ls() {
+        if (quiet) {
+            fileManager.list();
+            return true;
+        }
+        for (ListEntry entry : fileManager.ls()) {
+            print("File name: " + entry.name() + " | Descriptor id: " + entry.id() + " | " + entry.fileType());
+        }
+        return true;
+    }
+
+    private boolean stat(String path) {
+        FileStat stat = fileManager.getStat(path);
+        if (stat == null) {
+            return false;
+        }
+        if (!quiet) {
+            print("File type: " + stat.fileType());
+            print("File size: " + stat.size());
+            print("Allocated: " + stat.allocatedBlocks() + " blocks (" + stat.allocatedBytes() + " bytes)");
+            print("Blocks in use: " + stat.blocks());
+            print("Compression: " + (stat.compressed() ? String.format("lz, ratio %.2f", stat.compressionRatio()) : "none"));
+            print("Links amount: " + stat.links());
+            print("Id: " + stat.id());
+            print("Parent: " + stat.parentId());
+        }
+        return true;
+    }
+
+    private boolean snapshots() {
+        if (quiet) {
+            fileManager.listSnapshots();
+            return true;
+        }
+        for (SnapshotInfo snapshot : fileManager.getSnapshots()) {
+            print("Snapshot: " + snapshot.name() + " | Created: " + Instant.ofEpochMilli(snapshot.createdMillis()));
+        }
+        print("Blocks shared with snapshots: " + fileManager.getSharedBlocks());
+        return true;
+    }
+
+    private boolean cacheStat() {
+        if (quiet) {
+            return true;
+        }
+        DentryCache dentryCache = fileManager.getDentryCache();
+        print("Dentry cache: " + dentryCache.getSize() + "/" + dentryCache.getCapacity() + " entries | hits: "
+                + dentryCache.getHits() + " | misses: " + dentryCache.getMisses() + " | evictions: " + dentryCache.getEvictions());
+        BufferCache cache = fileManager.getBufferCache();
+        if (cache == null) {
+            print("Buffer cache: not used for in-memory volumes");
+            return true;
+        }
+        print("Buffer cache: " + cache.getSize() + "/" + cache.getCapacity() + " blocks | hit ratio: "
+                + String.format("%.2f", cache.getHitRatio()) + " | hits: " + cache.getHits() + " | misses: " + cache.getMisses()
+                + " | evictions: " + cache.getEvictions() + " | write-backs: " + cache.getWriteBacks());
+        return true;
+    }
+
+    private boolean metrics() {
+        if (quiet) {
+            return true;
+        }
+        MetricsSnapshot snapshot = fileManager.metricsSnapshot();
+        System.out.print(snapshot);
+        HistogramSnapshot compress = snapshot.timers().get("compress");
+        HistogramSnapshot decompress = snapshot.timers().get("decompress");
+        if (compress.count() > 0 || decompress.count() > 0) {
+            long in = snapshot.counters().get("compression.bytes.in");
+            long out = snapshot.counters().get("compression.bytes.out");
+            print(String.format("Compression: ratio %.2f | compress %.1f MB/s | decompress %.1f MB/s",
+                    out == 0 ? 1.0 : (double) in / out, megabytesPerSecond(in, compress.totalNanos()),
+                    megabytesPerSecond(snapshot.counters().get("decompression.bytes"), decompress.totalNanos())));
+        }
+        return true;
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * 1e9 / nanos / (1024 * 1024);
+    }
+
+    private boolean invalid() {
+        print("Invalid argument. Type 'help' to see available commands.");
+        return false;
+    }
+
+    private void print(String message) {
+        if (!quiet) {
+            System.out.println(message);
+        }
+    }
+
+    private boolean help() {
+        print("Available commands:");
+        print("  create <fileName>             - Create a new file");
+        print("  ls                            - List all files");
+        print("  link <existingFile> <newFile> - Create a new name for an existing file");
+        print("  unlink <fileName>             - Remove a file name");
+        print("  mv <source> <destination>     - Rename or move a file or directory, replacing the destination");
+        print("  truncate <fileName> <size>    - Change file size");
+        print("  open <fileName> [r|w|rw]      - Open a file and return fd");
+        print("  close <fd>                    - Close an open file");
+        print("  seek <fd> <offset>            - Move the read/write pointer in an open file");
+        print("  read <fd> <size>              - Read data from file of given size");
+        print("  write <fd> <data>             - Write data to file at current pointer position");
+        print("  pread <fd> <offset> <size>    - Read data at given offset without moving the pointer");
+        print("  pwrite <fd> <offset> <data>   - Write data at given offset without moving the pointer");
+        print("  punch <fileName> <offset> <length> - Free the blocks of a range, it reads as zeroes");
+        print("  stat <filename>               - Display file descriptor information");
+        print("  compress <fileName> [on|off]  - Store an empty file compressed in chunks, or stop doing so");
+        print("  mkdir <directoryName>         - Create a new directory");
+        print("  rmdir <directoryName>         - Remove directory");
+        print("  cd <directoryName>            - Change working directory");
+        print("  pwd                           - Display the path of the working directory");
+        print("  realpath <path>               - Display the absolute path a path leads to");
+        print("  symlink <path> <name>         - Create symbolic link that leads to <path>");
+        print("  snapshot <name>               - Freeze the current state of the volume under a name");
+        print("  snapshots                     - List the snapshots of this mount");
+        print("  rmsnapshot <name>             - Delete a snapshot and free the blocks only it kept");
+        print("  cachestat                     - Display cache hit and eviction counters");
+        print("  metrics                       - Display operation latencies and counters");
+        print("  exit                          - Exit the terminal");
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+package FileSys;
+
+// Frozen copy of the descriptors of a volume under a name. Its blocks are shared with the volume, whichever side
+// changes a block first writes a copy. A snapshot lives as long as the mount it was taken on
+public class Snapshot {
+    private final String name;
+    private final InodeTable inodes;
+    private final long createdMillis;
+    // Read-only file managers open on the snapshot, it can't be deleted while there are any
+    private int mounts = 0;
+    private boolean deleted = false;
+
+    public Snapshot(String name, InodeTable inodes, long createdMillis) {
+        this.name = name;
+        this.inodes = inodes;
+        this.createdMillis = createdMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public InodeTable getInodes() {
+        return inodes;
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    public synchronized boolean mount() {
+        if (deleted) {
+            return false;
+        }
+        mounts++;
+        return true;
+    }
+
+    public synchronized void unmount() {
+        mounts--;
+    }
+
+    // Marks the snapshot deleted unless it is mounted and force is false
+    public synchronized boolean delete(boolean force) {
+        if (mounts > 0 && !force) {
+            return false;
+        }
+        deleted = true;
+        return true;
+    }
+}
@@ -0,0 +1,4 @@
+package FileSys;
+
+public record SnapshotInfo(String name, long createdMillis) {
+}
@@ -0,0 +1,17 @@
+package FileSys;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Target of a symbolic link split into its path components, empty components of repeated slashes are dropped
+public record SymlinkTarget(boolean absolute, String[] components) {
+    public static SymlinkTarget parse(String target) {
+        List<String> components = new ArrayList<>();
+        for (String component : target.split("/")) {
+            if (!component.isEmpty()) {
+                components.add(component);
+            }
+        }
+        return new SymlinkTarget(target.startsWith("/"), components.toArray(new String[0]));
+    }
+}
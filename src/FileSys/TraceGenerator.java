@@ -0,0 +1,89 @@
+package FileSys;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+// Writes a synthetic script for the batch mode. Operations are drawn with the weights of the mix, every
+// file is created with a fixed size and kept open, so writes and reads go through pwrite and pread.
+// Descriptors are numbered the way the file manager hands them out, lowest free first, which keeps the
+// script valid as long as it is replayed on a volume that starts empty
+public class TraceGenerator {
+    // Keeps the script under the open file limit
+    private static final int MAX_FILES = Settings.MAX_OPEN_FILES / 2;
+    private static final int FILE_SIZE = 4096;
+    private static final int PAYLOAD = 64;
+
+    private record LiveFile(String name, int fd) {
+    }
+
+    private final int createWeight;
+    private final int writeWeight;
+    private final int readWeight;
+    private final int unlinkWeight;
+    private final Random random;
+
+    public TraceGenerator(int createWeight, int writeWeight, int readWeight, int unlinkWeight, long seed) {
+        if (createWeight <= 0 || writeWeight < 0 || readWeight < 0 || unlinkWeight < 0) {
+            throw new IllegalArgumentException("The mix needs a positive create weight and no negative weights");
+        }
+        this.createWeight = createWeight;
+        this.writeWeight = writeWeight;
+        this.readWeight = readWeight;
+        this.unlinkWeight = unlinkWeight;
+        this.random = new Random(seed);
+    }
+
+    // Mix as create:write:read:unlink weights, for example 1:4:4:1
+    public static TraceGenerator parse(String mix, long seed) {
+        String[] weights = mix.split(":");
+        if (weights.length != 4) {
+            throw new IllegalArgumentException("Mix should be create:write:read:unlink");
+        }
+        return new TraceGenerator(Integer.parseInt(weights[0]), Integer.parseInt(weights[1]),
+                Integer.parseInt(weights[2]), Integer.parseInt(weights[3]), seed);
+    }
+
+    public void generate(long operations, PrintStream out) {
+        List<LiveFile> files = new ArrayList<>();
+        TreeSet<Integer> freeFds = new TreeSet<>();
+        int nextFd = 0;
+        long nextName = 0;
+        int total = createWeight + writeWeight + readWeight + unlinkWeight;
+        char[] payload = new char[PAYLOAD];
+
+        for (long operation = 0; operation < operations; operation++) {
+            int pick = random.nextInt(total);
+            if (files.isEmpty() || (pick < createWeight && files.size() < MAX_FILES)) {
+                String name = "f" + nextName++;
+                int fd = freeFds.isEmpty() ? nextFd++ : freeFds.pollFirst();
+                out.println("create " + name);
+                out.println("truncate " + name + " " + FILE_SIZE);
+                out.println("open " + name + " rw");
+                files.add(new LiveFile(name, fd));
+                continue;
+            }
+            pick -= createWeight;
+            int index = random.nextInt(files.size());
+            LiveFile file = files.get(index);
+            if (pick < writeWeight) {
+                for (int i = 0; i < PAYLOAD; i++) {
+                    payload[i] = (char) ('a' + random.nextInt(26));
+                }
+                out.println("pwrite " + file.fd() + " " + random.nextInt(FILE_SIZE - PAYLOAD) + " " + new String(payload));
+            } else if (pick < writeWeight + readWeight) {
+                out.println("pread " + file.fd() + " " + random.nextInt(FILE_SIZE - PAYLOAD) + " " + PAYLOAD);
+            } else {
+                // Closed first so the descriptor is free again before the next create takes it
+                out.println("close " + file.fd());
+                out.println("unlink " + file.name());
+                freeFds.add(file.fd());
+                files.set(index, files.get(files.size() - 1));
+                files.remove(files.size() - 1);
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,72 @@
+package FileSys;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+// 2Q: blocks seen once go through a FIFO queue and only blocks seen again after leaving it reach the LRU queue,
+// so a single large scan can't flush hot directory blocks. Ghost entries remember recently evicted block ids
+public class TwoQueuePolicy implements EvictionPolicy {
+    private final FrameList recent;
+    private final FrameList frequent;
+    private final Set<Integer> ghosts = new LinkedHashSet<>();
+    private final int[] blockIds;
+    private final int recentLimit;
+    private final int ghostLimit;
+
+    public TwoQueuePolicy(int frames) {
+        this.recent = new FrameList(frames);
+        this.frequent = new FrameList(frames);
+        this.blockIds = new int[frames];
+        this.recentLimit = Math.max(frames / 4, 1);
+        this.ghostLimit = Math.max(frames / 2, 1);
+    }
+
+    @Override
+    public void inserted(int frame, int blockId) {
+        blockIds[frame] = blockId;
+        if (ghosts.remove(blockId)) {
+            frequent.addFirst(frame);
+        } else {
+            recent.addFirst(frame);
+        }
+    }
+
+    @Override
+    public void accessed(int frame) {
+        if (frequent.contains(frame)) {
+            frequent.moveToFront(frame);
+        }
+    }
+
+    @Override
+    public void removed(int frame) {
+        recent.remove(frame);
+        frequent.remove(frame);
+    }
+
+    @Override
+    public int victim(IntPredicate evictable) {
+        int frame = -1;
+        if (recent.size() > recentLimit || frequent.size() == 0) {
+            frame = recent.lastMatching(evictable);
+        }
+        if (frame == -1) {
+            frame = frequent.lastMatching(evictable);
+        }
+        if (frame == -1) {
+            frame = recent.lastMatching(evictable);
+        }
+        if (frame != -1 && recent.contains(frame)) {
+            remember(blockIds[frame]);
+        }
+        return frame;
+    }
+
+    private void remember(int blockId) {
+        ghosts.add(blockId);
+        if (ghosts.size() > ghostLimit) {
+            ghosts.remove(ghosts.iterator().next());
+        }
+    }
+}
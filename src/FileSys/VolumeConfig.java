@@ -0,0 +1,41 @@
+package FileSys;
+
+// Geometry of a volume, chosen when it is formatted. Image-backed volumes store it in the superblock.
+// blockCount is a long so byte offsets never overflow, block ids themselves stay ints
+public record VolumeConfig(int blockSize, long blockCount, int maxDescriptors) {
+    public static final int MIN_BLOCK_SIZE = 512;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+    public static final long MAX_BLOCK_COUNT = Integer.MAX_VALUE;
+
+    public VolumeConfig {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Block size must be a power of two between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+        }
+        if (blockCount < 1 || blockCount > MAX_BLOCK_COUNT) {
+            throw new IllegalArgumentException("Block count must be between 1 and " + MAX_BLOCK_COUNT);
+        }
+        if (maxDescriptors < 1) {
+            throw new IllegalArgumentException("A volume needs at least one descriptor");
+        }
+    }
+
+    public static VolumeConfig defaults() {
+        return new VolumeConfig(Settings.DEFAULT_BLOCK_SIZE, Settings.DEFAULT_BLOCK_COUNT, Settings.DEFAULT_MAX_DESCRIPTORS);
+    }
+
+    public VolumeConfig withBlockSize(int blockSize) {
+        return new VolumeConfig(blockSize, blockCount, maxDescriptors);
+    }
+
+    public VolumeConfig withBlockCount(long blockCount) {
+        return new VolumeConfig(blockSize, blockCount, maxDescriptors);
+    }
+
+    public VolumeConfig withMaxDescriptors(int maxDescriptors) {
+        return new VolumeConfig(blockSize, blockCount, maxDescriptors);
+    }
+
+    public long capacityBytes() {
+        return blockCount * blockSize;
+    }
+}
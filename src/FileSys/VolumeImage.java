@@ -0,0 +1,250 @@
+package FileSys;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Image layout: [superblock][descriptor table][free space map][journal][data blocks]. Everything before the data
+// blocks is accessed through one mapping, the data blocks through the channel, so a volume may exceed what can be mapped.
+// The table and the free map are worked on through private mappings of their regions and only reach the image
+// through the journal. A private page is read from the image until it is first changed, then the kernel copies it,
+// so mounting costs two mappings whatever the size of the volume and only changed pages take memory
+public class VolumeImage implements BlockDevice {
+    private static final int MAGIC = 0x53505A46;
+    private static final int VERSION = 8;
+    // Superblock - [magic][version][block size][max descriptors][block count][table offset][free map offset]
+    // [data offset][journal offset][journal size][flags]
+    private static final int SUPERBLOCK_SIZE = 64;
+    private static final int PAGE_SIZE = 4096;
+    private static final int FLAGS_OFFSET = 60;
+    private static final int SNAPSHOTS = 1;
+    private static final int ORPHANS = 2;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int blockSize;
+    private final long blockCount;
+    private final int maxDescriptors;
+    private final long dataOffset;
+    private final FreeSpaceMap freeSpaceMap;
+    private final DescriptorTable descriptorTable;
+    private final Journal journal;
+
+    private VolumeImage(FileChannel channel, MappedByteBuffer map, boolean format) throws IOException {
+        this.channel = channel;
+        this.map = map;
+        this.blockSize = map.getInt(8);
+        this.maxDescriptors = map.getInt(12);
+        this.blockCount = map.getLong(16);
+        long tableOffset = map.getLong(24);
+        long freeMapOffset = map.getLong(32);
+        this.dataOffset = map.getLong(40);
+        long journalOffset = map.getLong(48);
+        int journalSize = map.getInt(56);
+
+        int tableLength = maxDescriptors * DescriptorTable.RECORD_SIZE;
+        ByteBuffer homeTable = map.slice((int) tableOffset, tableLength);
+        int freeMapLength = FreeSpaceMap.regionLength((int) blockCount);
+        LongBuffer homeFreeMap = map.slice((int) freeMapOffset, freeMapLength * Long.BYTES).asLongBuffer();
+        if (format) {
+            new DescriptorTable(maxDescriptors, homeTable, true);
+        }
+        this.journal = new Journal(this, map.slice((int) journalOffset, journalSize), journalOffset, homeTable,
+                new FreeSpaceMap((int) blockCount, homeFreeMap, format));
+        if (format) {
+            flush();
+        } else {
+            int replayed = journal.replay();
+            if (replayed > 0) {
+                Log.info(() -> "Replayed " + replayed + " journaled operations");
+            }
+        }
+
+        // Mapped after the replay, home pages only change for records and words already changed in the private copy
+        this.descriptorTable = new DescriptorTable(maxDescriptors,
+                channel.map(FileChannel.MapMode.PRIVATE, tableOffset, tableLength), false);
+        this.freeSpaceMap = new FreeSpaceMap((int) blockCount,
+                channel.map(FileChannel.MapMode.PRIVATE, freeMapOffset, (long) freeMapLength * Long.BYTES).asLongBuffer(), false);
+    }
+
+    public static VolumeImage format(Path path, VolumeConfig config) throws IOException {
+        int journalSize = (int) align((long) Settings.JOURNAL_BLOCKS * config.blockSize(), PAGE_SIZE);
+        long tableOffset = SUPERBLOCK_SIZE;
+        long freeMapOffset = align(tableOffset + (long) config.maxDescriptors() * DescriptorTable.RECORD_SIZE, Long.BYTES);
+        long journalOffset = align(freeMapOffset + (long) FreeSpaceMap.regionLength((int) config.blockCount()) * Long.BYTES, PAGE_SIZE);
+        long dataOffset = align(journalOffset + journalSize, PAGE_SIZE);
+        if (dataOffset > Integer.MAX_VALUE) {
+            throw new IOException("Metadata of the volume doesn't fit in one mapping, use fewer descriptors or blocks");
+        }
+        long size = dataOffset + config.capacityBytes();
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        // Data blocks are never written by the format, so the file stays sparse until they are used
+        channel.write(ByteBuffer.allocate(1), size - 1);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset);
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, config.blockSize());
+        map.putInt(12, config.maxDescriptors());
+        map.putLong(16, config.blockCount());
+        map.putLong(24, tableOffset);
+        map.putLong(32, freeMapOffset);
+        map.putLong(40, dataOffset);
+        map.putLong(48, journalOffset);
+        map.putInt(56, journalSize);
+        return new VolumeImage(channel, map, true);
+    }
+
+    public static VolumeImage mount(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < SUPERBLOCK_SIZE) {
+            channel.close();
+            throw new IOException("Not a volume image: " + path);
+        }
+        MappedByteBuffer superblock = channel.map(FileChannel.MapMode.READ_ONLY, 0, SUPERBLOCK_SIZE);
+        if (superblock.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Not a volume image: " + path);
+        }
+        if (superblock.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException("Unsupported volume image: " + path);
+        }
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, superblock.getLong(40));
+        return new VolumeImage(channel, map, false);
+    }
+
+    private static long align(long value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpaceMap;
+    }
+
+    public DescriptorTable getDescriptorTable() {
+        return descriptorTable;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    // Set while snapshots reference blocks of the volume. Snapshots only live as long as the mount, a mount that
+    // finds the flag set reclaims the blocks they kept
+    public boolean hasSnapshots() {
+        return hasFlag(SNAPSHOTS);
+    }
+
+    public void setSnapshots(boolean present) {
+        setFlag(SNAPSHOTS, present);
+    }
+
+    // Set while files without links may still be open. They are released on their last close, a mount that finds
+    // the flag set looks for the ones a crash left behind
+    public boolean hasOrphans() {
+        return hasFlag(ORPHANS);
+    }
+
+    public void setOrphans(boolean present) {
+        setFlag(ORPHANS, present);
+    }
+
+    private synchronized boolean hasFlag(int flag) {
+        return (map.getInt(FLAGS_OFFSET) & flag) != 0;
+    }
+
+    private synchronized void setFlag(int flag, boolean present) {
+        int flags = map.getInt(FLAGS_OFFSET);
+        map.putInt(FLAGS_OFFSET, present ? flags | flag : flags & ~flag);
+        force(FLAGS_OFFSET, Integer.BYTES);
+    }
+
+    public VolumeConfig getConfig() {
+        return new VolumeConfig(blockSize, blockCount, maxDescriptors);
+    }
+
+    private long position(int blockId, int offset) {
+        return dataOffset + (long) blockId * blockSize + offset;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return (int) blockCount;
+    }
+
+    @Override
+    public void read(int blockId, int offset, ByteBuffer dst, int length) {
+        ByteBuffer target = dst.slice(dst.position(), length);
+        long position = position(blockId, offset);
+        try {
+            while (target.hasRemaining()) {
+                if (channel.read(target, position + target.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        dst.position(dst.position() + length);
+    }
+
+    @Override
+    public void write(int blockId, int offset, ByteBuffer src, int length) {
+        ByteBuffer source = src.slice(src.position(), length);
+        long position = position(blockId, offset);
+        try {
+            while (source.hasRemaining()) {
+                channel.write(source, position + source.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        src.position(src.position() + length);
+    }
+
+    @Override
+    public void fill(int blockId, int offset, int length, byte value) {
+        byte[] data = new byte[length];
+        if (value != 0) {
+            Arrays.fill(data, value);
+        }
+        write(blockId, offset, ByteBuffer.wrap(data), length);
+    }
+
+    @Override
+    public void release(int blockId, int count) {
+    }
+
+    @Override
+    public void flush() {
+        map.force();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void force(long offset, int length) {
+        map.force((int) offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
@@ -0,0 +1,193 @@
+package FileSys;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryIndexTest {
+    private static final int BUCKET_SIZE = Settings.DIR_BUCKET_SIZE;
+    // Offsets of the directory header and of a bucket header, see DirectoryIndex
+    private static final int H_DEPTH = 8;
+    private static final int H_TABLE = 12;
+    private static final int H_END = 20;
+    private static final int B_USED = 6;
+
+    private BlockManager blockManager;
+    private DirectoryIndex index;
+    private Descriptor directory;
+
+    @BeforeEach
+    void setUp() {
+        Log.setLevel(Log.Level.OFF);
+        blockManager = new BlockManager(VolumeConfig.defaults().withBlockCount(16384));
+        index = new DirectoryIndex(blockManager);
+        InodeTable inodes = new InodeTable(16);
+        int id = inodes.findFree();
+        inodes.allocate(id, id, InodeTable.DIRECTORY);
+        directory = new Descriptor(inodes, id);
+        assertTrue(index.format(directory));
+    }
+
+    private int header(int field) {
+        ByteBuffer header = ByteBuffer.allocate(24);
+        blockManager.read(directory, 0, header);
+        return header.getInt(field);
+    }
+
+    // Bytes taken by entries of the first bucket, the only one while nothing was split
+    private int firstBucketUsed() {
+        ByteBuffer bucket = ByteBuffer.allocate(12);
+        blockManager.read(directory, BUCKET_SIZE, bucket);
+        return bucket.getShort(B_USED);
+    }
+
+    // Names from 2 to about 60 bytes, so buckets hold entries of many sizes
+    private static String name(String prefix, int i) {
+        return prefix + i + "-".repeat(i * 7 % 53);
+    }
+
+    private void assertEntries(Map<String, Integer> expected) {
+        assertEquals(expected.size(), index.countEntries(directory));
+        List<DirectoryEntry> entries = index.getEntries(directory);
+        List<DirectoryEntry> wanted = new ArrayList<>();
+        expected.forEach((name, id) -> wanted.add(new DirectoryEntry(name, id)));
+        assertEquals(wanted, entries);
+        expected.forEach((name, id) -> assertEquals(id, index.findDescriptorId(directory, name), name));
+    }
+
+    @Test
+    void growsThroughSplitsAndTableDoublings() {
+        Map<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 4000; i++) {
+            assertTrue(index.addEntry(directory, name("f", i), i + 1));
+            expected.put(name("f", i), i + 1);
+        }
+        // The table outgrew the header bucket twice, the second move gave its old region back
+        assertTrue(header(H_DEPTH) >= 9, "depth " + header(H_DEPTH));
+        assertTrue(header(H_TABLE) >= 2 * BUCKET_SIZE);
+        assertTrue(header(H_END) > 200 * BUCKET_SIZE);
+        assertEntries(expected);
+        for (int i = 0; i < 4000; i += 97) {
+            assertEquals(name("f", i), index.findName(directory, i + 1));
+        }
+        assertNull(index.findName(directory, 5000));
+        assertEquals(-1, index.findDescriptorId(directory, "missing"));
+    }
+
+    @Test
+    void deletedEntriesAreReusedByShorterNames() {
+        Map<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(index.addEntry(directory, "long-name-" + "x".repeat(20) + i, i));
+            expected.put("long-name-" + "x".repeat(20) + i, i);
+        }
+        int used = firstBucketUsed();
+        for (int i = 2; i < 7; i++) {
+            assertTrue(index.deleteEntry(directory, "long-name-" + "x".repeat(20) + i));
+            expected.remove("long-name-" + "x".repeat(20) + i);
+        }
+        assertFalse(index.deleteEntry(directory, "long-name-" + "x".repeat(20) + 2));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(index.addEntry(directory, "short" + i, 100 + i));
+            expected.put("short" + i, 100 + i);
+        }
+        // Every new entry went into the place of a deleted one
+        assertEquals(used, firstBucketUsed());
+        assertEquals(2 * BUCKET_SIZE, header(H_END));
+        assertEntries(expected);
+    }
+
+    @Test
+    void fullBucketIsCompactedBeforeItSplits() {
+        Map<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 12; i++) {
+            assertTrue(index.addEntry(directory, "name-" + "y".repeat(20) + i, i));
+        }
+        assertEquals(0, header(H_DEPTH));
+        for (int i = 0; i < 11; i++) {
+            assertTrue(index.deleteEntry(directory, "name-" + "y".repeat(20) + i));
+        }
+        expected.put("name-" + "y".repeat(20) + 11, 11);
+        // Too long for any deleted entry, they only fit once the bucket is compacted
+        for (int i = 0; i < 5; i++) {
+            String name = "z".repeat(70) + i;
+            assertTrue(index.addEntry(directory, name, 200 + i));
+            expected.put(name, 200 + i);
+        }
+        assertEquals(0, header(H_DEPTH));
+        assertEquals(2 * BUCKET_SIZE, header(H_END));
+        assertEntries(expected);
+    }
+
+    @Test
+    void deleteAndReinsertAcrossManyBuckets() {
+        Map<String, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 1500; i++) {
+            assertTrue(index.addEntry(directory, name("a", i), i));
+            expected.put(name("a", i), i);
+        }
+        for (int i = 0; i < 1500; i += 2) {
+            assertTrue(index.deleteEntry(directory, name("a", i)));
+            expected.remove(name("a", i));
+        }
+        for (int i = 0; i < 1500; i += 2) {
+            // Same name with another id, then names of other lengths
+            assertTrue(index.addEntry(directory, name("a", i), 10000 + i));
+            expected.put(name("a", i), 10000 + i);
+            assertTrue(index.addEntry(directory, name("b", 3 * i + 1), 20000 + i));
+            expected.put(name("b", 3 * i + 1), 20000 + i);
+        }
+        assertTrue(index.setEntryId(directory, name("a", 1), 42));
+        expected.put(name("a", 1), 42);
+        assertEntries(expected);
+        assertEquals(name("a", 1), index.findName(directory, 42));
+    }
+
+    @Test
+    void largeDirectorySurvivesRemount(@TempDir Path temp) throws Throwable {
+        String image = temp.resolve("dir.img").toString();
+        FileManager volume = FileManager.format(image, VolumeConfig.defaults().withBlockCount(16384).withMaxDescriptors(4096));
+        assertTrue(volume.mkdir("big"));
+        assertTrue(volume.cd("big"));
+        List<String> expected = new ArrayList<>(List.of(".", ".."));
+        for (int i = 0; i < 2500; i++) {
+            assertTrue(volume.createFile(name("f", i)));
+        }
+        for (int i = 0; i < 2500; i++) {
+            if (i % 3 == 0) {
+                assertTrue(volume.unlink(name("f", i)));
+                assertTrue(volume.createFile(name("g", i / 3)));
+                expected.add(name("g", i / 3));
+            } else {
+                expected.add(name("f", i));
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            assertTrue(volume.mkdir("dir" + "-".repeat(i) + i));
+            expected.add("dir" + "-".repeat(i) + i);
+        }
+        volume.close();
+
+        FileManager mounted = FileManager.mount(image);
+        assertTrue(mounted.cd("big"));
+        List<String> names = mounted.list().stream().map(DirectoryEntry::name).toList();
+        assertEquals(expected.stream().sorted().toList(), names);
+        assertNull(mounted.getStat(name("f", 0)));
+        assertNotNull(mounted.getStat(name("f", 1)));
+        // The path of a directory is rebuilt by looking up its name in the parent
+        for (int i = 0; i < 20; i += 7) {
+            assertTrue(mounted.cd("/big/dir" + "-".repeat(i) + i));
+            assertEquals("/big/dir" + "-".repeat(i) + i, mounted.getPathString());
+        }
+        mounted.close();
+    }
+}
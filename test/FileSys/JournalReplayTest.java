@@ -0,0 +1,237 @@
+package FileSys;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A crash is simulated by putting the journal region of one image into a copy of the image taken before the
+// group reached its home locations
+class JournalReplayTest {
+    private static final int MAGIC = 0x4A524E4C;
+    private static final int HEADER_SIZE = 16;
+    private static final byte BLOCK = 2;
+    private static final byte ALLOCATE = 3;
+    private static final byte FREE = 4;
+    private static final VolumeConfig CONFIG = VolumeConfig.defaults().withBlockCount(1024).withMaxDescriptors(64);
+
+    @TempDir
+    Path directory;
+    private Path before;
+    private Path after;
+
+    @BeforeEach
+    void setUp() throws Throwable {
+        Log.setLevel(Log.Level.OFF);
+        before = directory.resolve("before.img");
+        after = directory.resolve("after.img");
+        FileManager volume = FileManager.format(before.toString(), CONFIG);
+        assertTrue(volume.mkdir("d"));
+        assertTrue(volume.createFile("d/a"));
+        int fd = volume.open("d/a", OpenFile.READ | OpenFile.WRITE);
+        assertTrue(volume.truncate("d/a", 4));
+        volume.write(fd, "data");
+        volume.close(fd);
+        volume.close();
+        Files.copy(before, after);
+    }
+
+    // Runs one operation on the after image, which is a single transaction and so the last group in its journal
+    private byte[] groupOf(Operation operation) throws Throwable {
+        FileManager volume = FileManager.mount(after.toString());
+        assertTrue(operation.run(volume));
+        volume.close();
+        try (FileChannel channel = FileChannel.open(after, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, journalOffset(channel));
+            assertEquals(1, header.getInt(12));
+            byte[] group = new byte[HEADER_SIZE + header.getInt(4)];
+            channel.read(ByteBuffer.wrap(group), journalOffset(channel));
+            return group;
+        }
+    }
+
+    private interface Operation {
+        boolean run(FileManager volume);
+    }
+
+    private static long journalOffset(FileChannel channel) throws IOException {
+        ByteBuffer superblock = ByteBuffer.allocate(64);
+        channel.read(superblock, 0);
+        return superblock.getLong(48);
+    }
+
+    // The before image with the group in its journal as if the crash came right after the group was written
+    private Path crashWith(byte[] group) throws IOException {
+        Path crashed = directory.resolve("crashed.img");
+        Files.copy(before, crashed);
+        ByteBuffer region = ByteBuffer.wrap(group.clone());
+        region.putInt(0, MAGIC);
+        try (FileChannel channel = FileChannel.open(crashed, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            channel.write(region, journalOffset(channel));
+        }
+        return crashed;
+    }
+
+    private static byte[] group(ByteBuffer payload) {
+        byte[] entries = Arrays.copyOf(payload.array(), payload.position());
+        CRC32 checksum = new CRC32();
+        checksum.update(entries);
+        ByteBuffer group = ByteBuffer.allocate(HEADER_SIZE + entries.length);
+        group.putInt(MAGIC).putInt(entries.length).putInt((int) checksum.getValue()).putInt(1).put(entries);
+        return group.array();
+    }
+
+    private static void assertSameMetadata(Path expected, Path actual) throws IOException {
+        VolumeImage expectedImage = VolumeImage.mount(expected);
+        VolumeImage actualImage = VolumeImage.mount(actual);
+        try {
+            ByteBuffer expectedRecord = ByteBuffer.allocate(DescriptorTable.RECORD_SIZE);
+            ByteBuffer actualRecord = ByteBuffer.allocate(DescriptorTable.RECORD_SIZE);
+            for (int id = 0; id < CONFIG.maxDescriptors(); id++) {
+                expectedImage.getDescriptorTable().copyRecord(id, expectedRecord.clear());
+                actualImage.getDescriptorTable().copyRecord(id, actualRecord.clear());
+                assertEquals(expectedRecord.flip(), actualRecord.flip(), "descriptor " + id);
+            }
+            for (int block = 0; block < CONFIG.blockCount(); block++) {
+                assertEquals(expectedImage.getFreeSpaceMap().isFree(block), actualImage.getFreeSpaceMap().isFree(block),
+                        "block " + block);
+            }
+        } finally {
+            expectedImage.close();
+            actualImage.close();
+        }
+    }
+
+    private static List<String> names(Path image, String path) throws Throwable {
+        FileManager volume = FileManager.mount(image.toString());
+        try {
+            assertTrue(volume.cd(path));
+            return volume.list().stream().map(DirectoryEntry::name).sorted().toList();
+        } finally {
+            volume.close();
+        }
+    }
+
+    private int blockOf(String path) throws Throwable {
+        FileManager volume = FileManager.mount(before.toString());
+        try {
+            String blocks = volume.getStat(path).blocks();
+            return Integer.parseInt(blocks.substring(1, blocks.length() - 1));
+        } finally {
+            volume.close();
+        }
+    }
+
+    private static String read(Path image, int blockId, int length) throws IOException {
+        VolumeImage volume = VolumeImage.mount(image);
+        try {
+            ByteBuffer data = ByteBuffer.allocate(length);
+            volume.read(blockId, 0, data, length);
+            return new String(data.array(), StandardCharsets.UTF_8);
+        } finally {
+            volume.close();
+        }
+    }
+
+    @Test
+    void writtenGroupIsReplayed() throws Throwable {
+        Path crashed = crashWith(groupOf(volume -> volume.mkdir("d/e")));
+
+        assertSameMetadata(after, crashed);
+        assertEquals(List.of(".", "..", "a", "e"), names(crashed, "d"));
+        assertEquals(List.of(".", ".."), names(crashed, "d/e"));
+        // The group is gone once applied, the next mount finds nothing to replay
+        assertSameMetadata(after, crashed);
+    }
+
+    @Test
+    void tornGroupIsDropped() throws Throwable {
+        byte[] group = groupOf(volume -> volume.rename("d/a", "d/b"));
+        group[group.length / 2] ^= 1;
+        Path crashed = crashWith(group);
+
+        assertSameMetadata(before, crashed);
+        assertEquals(List.of(".", "..", "a"), names(crashed, "d"));
+    }
+
+    @Test
+    void truncatedGroupIsDropped() throws Throwable {
+        byte[] group = groupOf(volume -> volume.mkdir("d/e"));
+        // Only the first part of the group made it to the journal before the crash
+        Arrays.fill(group, HEADER_SIZE + (group.length - HEADER_SIZE) / 3, group.length, (byte) 0);
+        Path crashed = crashWith(group);
+
+        assertSameMetadata(before, crashed);
+        assertEquals(List.of(".", "..", "a"), names(crashed, "d"));
+    }
+
+    @Test
+    void blockImageFollowedByFreeIsSkipped() throws Throwable {
+        int blockId = blockOf("d/a");
+        int blockSize = CONFIG.blockSize();
+        byte[] stale = new byte[blockSize];
+        Arrays.fill(stale, (byte) 'x');
+        // The block held metadata that was freed and then given to the file, whose data isn't journaled
+        ByteBuffer payload = ByteBuffer.allocate(3 * (1 + 2 * Integer.BYTES) + blockSize);
+        payload.put(BLOCK).putInt(blockId).put(stale);
+        payload.put(FREE).putInt(blockId).putInt(1);
+        payload.put(ALLOCATE).putInt(blockId).putInt(1);
+        Path crashed = crashWith(group(payload));
+
+        assertEquals("data", read(crashed, blockId, 4));
+        assertSameMetadata(before, crashed);
+    }
+
+    @Test
+    void blockImageAfterFreeIsApplied() throws Throwable {
+        int blockId = blockOf("d/a") + 1;
+        int blockSize = CONFIG.blockSize();
+        byte[] image = new byte[blockSize];
+        Arrays.fill(image, (byte) 'y');
+        ByteBuffer payload = ByteBuffer.allocate(3 * (1 + 2 * Integer.BYTES) + blockSize);
+        payload.put(FREE).putInt(blockId).putInt(1);
+        payload.put(ALLOCATE).putInt(blockId).putInt(1);
+        payload.put(BLOCK).putInt(blockId).put(image);
+        Path crashed = crashWith(group(payload));
+
+        assertEquals("yyyy", read(crashed, blockId, 4));
+        VolumeImage volume = VolumeImage.mount(crashed);
+        assertFalse(volume.getFreeSpaceMap().isFree(blockId));
+        volume.close();
+    }
+
+    @Test
+    void freesAreDeferredUntilCommit() throws Throwable {
+        int blockId = blockOf("d/a");
+        VolumeImage volume = VolumeImage.mount(before);
+        Journal journal = volume.getJournal();
+        boolean[] freed = new boolean[1];
+        journal.begin();
+        journal.begin();
+        journal.free(blockId, 1, () -> freed[0] = true);
+        journal.commit();
+        // Until the outermost commit logs the free, the block must not be handed out again
+        assertFalse(freed[0]);
+        journal.commit();
+        assertTrue(freed[0]);
+
+        journal.flush();
+        volume.close();
+        VolumeImage mounted = VolumeImage.mount(before);
+        assertTrue(mounted.getFreeSpaceMap().isFree(blockId));
+        mounted.close();
+    }
+}
@@ -0,0 +1,121 @@
+package FileSys;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LargeFileTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final long GIB = 1L << 30;
+
+    private FileManager fileManager;
+
+    @BeforeEach
+    void setUp() {
+        Log.setLevel(Log.Level.OFF);
+        fileManager = new FileManager(VolumeConfig.defaults().withBlockSize(BLOCK_SIZE).withBlockCount(256));
+    }
+
+    private static ByteBuffer bytes(String data) {
+        return ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String pread(int fd, long position, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        int read = fileManager.pread(fd, position, buffer);
+        return new String(buffer.array(), 0, Math.max(read, 0), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void truncateJustBelowIntLimit() {
+        long size = Integer.MAX_VALUE - 10;
+        assertTrue(fileManager.createFile("f"));
+        assertTrue(fileManager.truncate("f", size));
+        FileStat stat = fileManager.getStat("f");
+        assertEquals(size, stat.size());
+        assertEquals(0, stat.allocatedBlocks());
+
+        int fd = fileManager.open("f", OpenFile.READ | OpenFile.WRITE);
+        assertEquals(5, fileManager.pwrite(fd, size - 5, bytes("tail!")));
+        assertEquals(5, fileManager.pwrite(fd, 0, bytes("head!")));
+        assertEquals("tail!", pread(fd, size - 5, 16));
+        assertEquals("head!", pread(fd, 0, 5));
+        assertEquals(2, fileManager.getStat("f").allocatedBlocks());
+    }
+
+    @Test
+    void readAndWriteAcrossTwoGib() {
+        long boundary = 1L << 31;
+        assertTrue(fileManager.createFile("f"));
+        assertTrue(fileManager.truncate("f", 3 * GIB));
+        int fd = fileManager.open("f", OpenFile.READ | OpenFile.WRITE);
+
+        assertEquals(8, fileManager.pwrite(fd, boundary - 4, bytes("abcdefgh")));
+        assertEquals("abcdefgh", pread(fd, boundary - 4, 8));
+        assertEquals("efgh", pread(fd, boundary, 4));
+        assertEquals(2, fileManager.getStat("f").allocatedBlocks());
+
+        assertTrue(fileManager.seek(fd, 3 * GIB - 3));
+        fileManager.write(fd, "xyz");
+        assertEquals("xyz", pread(fd, 3 * GIB - 3, 10));
+        assertEquals(-1, fileManager.pwrite(fd, 3 * GIB - 1, bytes("past")));
+    }
+
+    @Test
+    void sizesPastTheLimitAreRejected() {
+        long limit = (long) Integer.MAX_VALUE * BLOCK_SIZE;
+        assertTrue(fileManager.createFile("f"));
+        assertFalse(fileManager.truncate("f", limit + 1));
+        assertFalse(fileManager.truncate("f", Long.MAX_VALUE));
+        assertFalse(fileManager.truncate("f", -1));
+        assertEquals(0, fileManager.getStat("f").size());
+
+        assertTrue(fileManager.truncate("f", limit));
+        assertEquals(limit, fileManager.getStat("f").size());
+        int fd = fileManager.open("f", OpenFile.READ | OpenFile.WRITE);
+        assertEquals(3, fileManager.pwrite(fd, limit - 3, bytes("end")));
+        assertEquals("end", pread(fd, limit - 3, 3));
+    }
+
+    @Test
+    void punchAndShrinkPastTwoGib() {
+        assertTrue(fileManager.createFile("f"));
+        assertTrue(fileManager.truncate("f", 4 * GIB));
+        int fd = fileManager.open("f", OpenFile.READ | OpenFile.WRITE);
+        ByteBuffer block = ByteBuffer.allocate(2 * BLOCK_SIZE);
+        assertEquals(2 * BLOCK_SIZE, fileManager.pwrite(fd, 3 * GIB, block));
+        assertEquals(2, fileManager.getStat("f").allocatedBlocks());
+
+        assertTrue(fileManager.punchHole("f", 3 * GIB, BLOCK_SIZE));
+        assertEquals(1, fileManager.getStat("f").allocatedBlocks());
+        assertTrue(fileManager.truncate("f", 3 * GIB));
+        assertEquals(0, fileManager.getStat("f").allocatedBlocks());
+        assertEquals(3 * GIB, fileManager.getStat("f").size());
+    }
+
+    @Test
+    void sizeSurvivesRemount(@TempDir Path directory) throws Throwable {
+        String image = directory.resolve("large.img").toString();
+        FileManager volume = FileManager.format(image, VolumeConfig.defaults().withBlockSize(BLOCK_SIZE).withBlockCount(256));
+        assertTrue(volume.createFile("f"));
+        assertTrue(volume.truncate("f", 5 * GIB + 7));
+        int fd = volume.open("f", OpenFile.READ | OpenFile.WRITE);
+        assertEquals(4, volume.pwrite(fd, 5 * GIB, bytes("data")));
+        volume.close(fd);
+        volume.close();
+
+        FileManager mounted = FileManager.mount(image);
+        assertEquals(5 * GIB + 7, mounted.getStat("f").size());
+        fd = mounted.open("f", OpenFile.READ);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        assertEquals(7, mounted.pread(fd, 5 * GIB, buffer));
+        assertEquals("data", new String(buffer.array(), 0, 4, StandardCharsets.UTF_8));
+        mounted.close();
+    }
+}
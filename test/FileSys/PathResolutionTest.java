@@ -0,0 +1,61 @@
+package FileSys;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PathResolutionTest {
+    private FileManager fileManager;
+    private Shell shell;
+
+    @BeforeEach
+    void setUp() {
+        Log.setLevel(Log.Level.OFF);
+        fileManager = new FileManager(VolumeConfig.defaults().withBlockCount(1024));
+        shell = new Shell(fileManager, true);
+    }
+
+    @Test
+    void statOfRoot() throws Throwable {
+        FileStat stat = fileManager.getStat("/");
+        assertNotNull(stat);
+        assertEquals(0, stat.id());
+        assertTrue(shell.execute("stat /"));
+        assertEquals("/", fileManager.realpath("/"));
+    }
+
+    @Test
+    void symlinkToRoot() throws Throwable {
+        assertTrue(fileManager.mkdir("dir"));
+        assertTrue(fileManager.createSymLink("/", "r"));
+
+        assertTrue(shell.execute("stat r"));
+        assertEquals(0, fileManager.getStat("r").id());
+        assertEquals("/", fileManager.realpath("r"));
+
+        assertTrue(fileManager.cd("dir"));
+        assertTrue(shell.execute("cd ../r"));
+        assertEquals("/", fileManager.getPathString());
+
+        assertTrue(shell.execute("cd dir"));
+        assertTrue(shell.execute("cd /r"));
+        assertEquals("/", fileManager.getPathString());
+    }
+
+    @Test
+    void parentOfRootIsRoot() throws Throwable {
+        assertTrue(fileManager.mkdir("dir"));
+        assertTrue(fileManager.cd("/../dir"));
+        assertEquals("/dir", fileManager.getPathString());
+    }
+
+    @Test
+    void rootCanNotBeRemoved() {
+        assertTrue(fileManager.createSymLink("/", "r"));
+        assertFalse(fileManager.rmdir("/"));
+        assertFalse(fileManager.unlink("/"));
+        assertTrue(fileManager.cd("r"));
+        assertEquals(0, fileManager.getStat("/").id());
+    }
+}